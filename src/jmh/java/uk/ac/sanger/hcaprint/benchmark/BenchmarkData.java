@@ -0,0 +1,61 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import uk.ac.sanger.hcaprint.ConfigException;
+import uk.ac.sanger.hcaprint.LabelData;
+import uk.ac.sanger.hcaprint.PrintConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Generated data for benchmarks.
+ * @author dr6
+ */
+public class BenchmarkData {
+    private static final String[] DATES = { "2020-11-02", "2020-11-03", "2020-11-04", "2020-11-05" };
+
+    /**
+     * Gets text like that pasted from a two-column spreadsheet, with the given number of rows.
+     * @param rows the number of rows
+     * @return tab-separated text
+     */
+    public static String clipboardText(int rows) {
+        StringBuilder sb = new StringBuilder(rows * 24);
+        for (int i = 0; i < rows; ++i) {
+            sb.append(barcode(i)).append('\t').append(DATES[i % DATES.length]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets a list of the given number of labels.
+     * @param count the number of labels
+     * @return a list of labels
+     */
+    public static List<LabelData> labels(int count) {
+        List<LabelData> labels = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            labels.add(new LabelData(barcode(i), DATES[i % DATES.length]));
+        }
+        return labels;
+    }
+
+    /**
+     * Loads the application's config, which includes the field names used in print requests.
+     * @return the application's config
+     */
+    public static PrintConfig config() {
+        Properties props = new Properties();
+        try (InputStream in = BenchmarkData.class.getClassLoader().getResourceAsStream("config.properties")) {
+            props.load(Objects.requireNonNull(in, "config.properties"));
+            return new PrintConfig(props);
+        } catch (IOException | ConfigException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String barcode(int index) {
+        return String.format("HCA%08d", index);
+    }
+}
@@ -0,0 +1,57 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.sanger.hcaprint.PMBClient;
+import uk.ac.sanger.hcaprint.PrintRequest;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for posting print requests with and without gzip compression,
+ * over an unlimited link and over a simulated 10 Mbit/s link.
+ * The mean number of bytes sent on the wire for each request is printed at the end of each trial.
+ * @author dr6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int labels;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    /** The simulated bandwidth in kilobits per second; 0 for no limit */
+    @Param({"0", "10000"})
+    public int bandwidthKbps;
+
+    private StubServer server;
+    private PMBClient client;
+    private PrintRequest request;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubServer(bandwidthKbps, true);
+        client = new PMBClient(server.getUrl(), null);
+        client.setCompressRequests(compress);
+        request = new PrintRequest(BenchmarkData.labels(labels), "printer", BenchmarkData.config());
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s labels, compress=%s: %s bytes per request on the wire%n",
+                labels, compress, server.getMeanBytesPerRequest());
+        server.close();
+    }
+
+    /** Posting with the blocking client, streaming the body to the connection. */
+    @Benchmark
+    public void print() throws IOException {
+        client.print(request);
+    }
+}
@@ -0,0 +1,201 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import uk.ac.sanger.hcaprint.*;
+import uk.ac.sanger.hcaprint.PrintMetrics.PrinterStats;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A load generator that drives {@link PMBClient} from many simulated benches at once, and reports the
+ * throughput and the distribution of print times.
+ * <p>Each bench has its own client (as each bench runs its own copy of the application) and prints the
+ * given number of labels, split into batches, in the same way as the application, pausing between prints.
+ * The benches share a few printers. By default the prints go to an embedded {@link PMBSimulator},
+ * whose behaviour is set by the arguments; given a {@code url}, they go there instead.
+ * <p>Run it with, for example:
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Dload.args="benches=50 duration=30 latency=200 error_rate=0.01"
+ * </pre>
+ * Arguments (all optional) are given as {@code key=value}:
+ * <ul>
+ *     <li>{@code benches} the number of simulated benches (default 20)</li>
+ *     <li>{@code printers} the number of printers the benches share (default 4)</li>
+ *     <li>{@code duration} how long to run, in seconds (default 30)</li>
+ *     <li>{@code warm_up} how long to run before measuring, in seconds (default 5); the first print from
+ *     each bench is much slower than the rest, while the client starts up</li>
+ *     <li>{@code labels} the number of labels in each print (default 100)</li>
+ *     <li>{@code batch_size} the maximum number of labels in each request (default 500)</li>
+ *     <li>{@code pause} the pause between one bench's prints, in milliseconds (default 1000)</li>
+ *     <li>{@code connect_timeout}, {@code read_timeout} the client timeouts, in seconds (default none)</li>
+ *     <li>{@code compress} whether to compress requests (default false)</li>
+ *     <li>{@code latency}, {@code jitter} the simulator's response delay, in milliseconds (default 0)</li>
+ *     <li>{@code error_rate}, {@code not_found_rate} the proportions of requests the simulator fails
+ *     with 500 and 404 (default 0)</li>
+ *     <li>{@code bandwidth} the simulator's link speed, in kilobits per second (default unlimited)</li>
+ *     <li>{@code slow_body} how long the simulator takes to send each response body, in milliseconds (default 0)</li>
+ *     <li>{@code url} the url of another PrintMyBarcode to send to, instead of the simulator</li>
+ * </ul>
+ * @author dr6
+ */
+public class LoadTest {
+    private final Properties args;
+    private final String url;
+    private final List<String> printers = new ArrayList<>();
+    private final PrintMetrics metrics = new PrintMetrics();
+    private final Map<String, Long> failures = new ConcurrentSkipListMap<>();
+
+    private LoadTest(Properties args, String url) {
+        this.args = args;
+        this.url = url;
+        int numPrinters = getInt("printers", 4);
+        for (int i = 1; i <= numPrinters; ++i) {
+            printers.add("printer"+i);
+        }
+    }
+
+    public static void main(String[] mainArgs) throws Exception {
+        Properties args = new Properties();
+        for (String arg : mainArgs) {
+            int c = arg.indexOf('=');
+            if (c > 0) {
+                args.setProperty(arg.substring(0, c).trim(), arg.substring(c+1).trim());
+            }
+        }
+        String url = args.getProperty("url", "");
+        if (!url.isEmpty()) {
+            new LoadTest(args, url).run();
+            return;
+        }
+        try (PMBSimulator simulator = new PMBSimulator()) {
+            LoadTest test = new LoadTest(args, simulator.getUrl());
+            simulator.setLatency(Duration.ofMillis(test.getInt("latency", 0)), Duration.ofMillis(test.getInt("jitter", 0)));
+            simulator.setErrorRate(test.getDouble("error_rate"));
+            simulator.setNotFoundRate(test.getDouble("not_found_rate"));
+            simulator.setBandwidthKbps(test.getInt("bandwidth", 0));
+            simulator.setSlowBody(Duration.ofMillis(test.getInt("slow_body", 0)));
+            test.run();
+            System.out.printf("%nSimulator: %s requests, %s labels accepted, responses %s%n",
+                    simulator.getRequests(), simulator.getLabels(), simulator.getStatusCounts());
+        }
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return Integer.parseInt(args.getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    private double getDouble(String key) {
+        return Double.parseDouble(args.getProperty(key, "0"));
+    }
+
+    private Duration getSeconds(String key) {
+        int seconds = getInt(key, 0);
+        return (seconds > 0 ? Duration.ofSeconds(seconds) : null);
+    }
+
+    /**
+     * Runs the benches until the duration is up, and reports the results.
+     */
+    private void run() throws InterruptedException {
+        final int numBenches = getInt("benches", 20);
+        final long durationNanos = TimeUnit.SECONDS.toNanos(getInt("duration", 30));
+        final long warmUpNanos = TimeUnit.SECONDS.toNanos(getInt("warm_up", 5));
+        System.out.printf("Running %s benches for %s s (after %s s warm-up) against %s%n", numBenches,
+                durationNanos / 1_000_000_000L, warmUpNanos / 1_000_000_000L, url);
+        ExecutorService executor = Executors.newFixedThreadPool(numBenches);
+        List<Future<long[]>> results = new ArrayList<>(numBenches);
+        final long start = System.nanoTime() + warmUpNanos;
+        final long deadline = start + durationNanos;
+        for (int i = 0; i < numBenches; ++i) {
+            final String printer = printers.get(i % printers.size());
+            results.add(executor.submit(() -> runBench(printer, start, deadline)));
+        }
+        executor.shutdown();
+        long[] printTimes = new long[0];
+        for (Future<long[]> result : results) {
+            try {
+                long[] times = result.get();
+                int n = printTimes.length;
+                printTimes = Arrays.copyOf(printTimes, n + times.length);
+                System.arraycopy(times, 0, printTimes, n, times.length);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        report(printTimes, elapsedSeconds);
+    }
+
+    /**
+     * Prints repeatedly from one bench until the deadline.
+     * @param printer the printer to print to
+     * @param start the {@link System#nanoTime} from which prints are measured
+     * @param deadline the {@link System#nanoTime} after which no more prints are started
+     * @return the times taken by the successful prints that were measured, in nanoseconds
+     */
+    private long[] runBench(String printer, long start, long deadline) throws IOException, InterruptedException {
+        PMBClient client = new PMBClient(url, null, getSeconds("connect_timeout"), getSeconds("read_timeout"));
+        client.setMetrics(metrics);
+        client.setCompressRequests(Boolean.parseBoolean(args.getProperty("compress", "false")));
+        PrintRequest request = new PrintRequest(BenchmarkData.labels(getInt("labels", 100)), printer, BenchmarkData.config());
+        List<PrintRequest> batches = request.split(getInt("batch_size", 500));
+        final long pauseMillis = getInt("pause", 1000);
+        // Stagger the benches' first prints across the pause
+        Thread.sleep(pauseMillis > 0 ? ThreadLocalRandom.current().nextLong(pauseMillis) : 0);
+        long[] times = new long[64];
+        int count = 0;
+        while (System.nanoTime() < deadline) {
+            long printStart = System.nanoTime();
+            boolean measured = (printStart >= start);
+            try {
+                client.printAsync(batches, null).join();
+                if (measured) {
+                    if (count==times.length) {
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                    times[count++] = System.nanoTime() - printStart;
+                }
+            } catch (CompletionException e) {
+                if (measured) {
+                    Throwable cause = (e.getCause() instanceof BatchPrintException ? e.getCause().getCause() : e.getCause());
+                    // The first line is enough to tell the failures apart; the rest is the response body
+                    failures.merge(String.valueOf(cause).lines().findFirst().orElse(""), 1L, Long::sum);
+                }
+            }
+            Thread.sleep(pauseMillis);
+        }
+        return Arrays.copyOf(times, count);
+    }
+
+    private void report(long[] printTimes, double elapsedSeconds) {
+        Arrays.sort(printTimes);
+        long failed = failures.values().stream().mapToLong(Long::longValue).sum();
+        int labels = getInt("labels", 100);
+        System.out.printf("%nPrints: %s succeeded, %s failed in %.1f s%n", printTimes.length, failed, elapsedSeconds);
+        System.out.printf("Throughput: %.1f prints/s, %.0f labels/s%n",
+                printTimes.length / elapsedSeconds, (double) printTimes.length * labels / elapsedSeconds);
+        if (printTimes.length > 0) {
+            System.out.printf("Print time (ms): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                    percentile(printTimes, 50), percentile(printTimes, 90), percentile(printTimes, 99),
+                    percentile(printTimes, 99.9), printTimes[printTimes.length-1] / 1e6);
+        }
+        failures.forEach((failure, count) -> System.out.printf("Failure x %s: %s%n", count, failure));
+        System.out.printf("%nRequests by printer (including warm-up):%n");
+        System.out.printf("%-10s %9s %7s %12s %12s %12s%n", "printer", "requests", "failed", "p50 ms", "p99 ms", "max ms");
+        for (PrinterStats stats : metrics.getStats()) {
+            System.out.printf("%-10s %9s %7s %12.1f %12.1f %12.1f%n", stats.getPrinter(), stats.getRequests(),
+                    stats.getFailures(), stats.getTotalTime().getPercentile(50) / 1e6,
+                    stats.getTotalTime().getPercentile(99) / 1e6, stats.getTotalTime().getMax() / 1e6);
+        }
+    }
+
+    /**
+     * Gets a percentile of the given sorted times, in milliseconds.
+     */
+    private static double percentile(long[] sortedTimes, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sortedTimes.length) - 1;
+        return sortedTimes[Math.max(0, Math.min(index, sortedTimes.length-1))] / 1e6;
+    }
+}
@@ -0,0 +1,307 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.json.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * An in-process stand-in for PrintMyBarcode, for load testing without sending anything to the real service.
+ * <p>The simulator accepts print requests posted to {@code /v1/print_jobs}, in the JSON format produced by
+ * {@code PrintRequest}, and checks that each one names a printer and template and has a body of labels.
+ * Its behaviour can be changed while it is running:
+ * <ul>
+ *     <li>{@link #setLatency latency}: a fixed delay, plus a random jitter, before each response</li>
+ *     <li>{@link #setErrorRate error rate}: the proportion of requests that fail with 500</li>
+ *     <li>{@link #setNotFoundRate not-found rate}: the proportion of requests rejected with 404,
+ *     as if the printer were unknown</li>
+ *     <li>{@link #setBandwidthKbps bandwidth}: how fast request bodies are read, simulating a slow link</li>
+ *     <li>{@link #setSlowBody slow body}: how long the response body takes to trickle out after the headers,
+ *     simulating a service that stalls part way through a response</li>
+ * </ul>
+ * Gzip-compressed requests are accepted. Malformed requests are rejected with 422; other paths with 404,
+ * and other methods with 405.
+ * <p>The simulator counts the requests and labels it receives, and the status of each response.
+ * @author dr6
+ */
+public class PMBSimulator implements AutoCloseable {
+    static {
+        // See StubServer: avoids delayed acks adding about 40ms to requests on kept-alive connections.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /** The path at which print requests are accepted */
+    public static final String PATH = "/v1/print_jobs";
+    private static final int CHUNK_SIZE = 4096;
+    private static final int SLOW_BODY_CHUNKS = 10;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long latencyMicros;
+    private volatile long jitterMicros;
+    private volatile double errorRate;
+    private volatile double notFoundRate;
+    private volatile int bandwidthKbps;
+    private volatile long slowBodyMicros;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final LongAdder labels = new LongAdder();
+    private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a simulator on an ephemeral port on the loopback interface.
+     * Initially it responds successfully, as fast as it can.
+     * @exception IOException the server could not be started
+     */
+    public PMBSimulator() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts a simulator on the given port on the loopback interface.
+     * Initially it responds successfully, as fast as it can.
+     * @param port the port to listen on, or 0 for an ephemeral port
+     * @exception IOException the server could not be started
+     */
+    public PMBSimulator(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "pmb-simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Sets the delay before each response.
+     * @param latency the fixed part of the delay
+     * @param jitter the maximum random delay added to the fixed part
+     */
+    public void setLatency(Duration latency, Duration jitter) {
+        this.latencyMicros = latency.toNanos() / 1000;
+        this.jitterMicros = jitter.toNanos() / 1000;
+    }
+
+    /**
+     * Sets the proportion of requests that fail with an internal server error (500).
+     * @param errorRate a proportion between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the proportion of requests that are rejected as not found (404).
+     * @param notFoundRate a proportion between 0 and 1
+     */
+    public void setNotFoundRate(double notFoundRate) {
+        this.notFoundRate = notFoundRate;
+    }
+
+    /**
+     * Sets the rate at which request bodies are read.
+     * @param bandwidthKbps the rate in kilobits per second, or 0 for no limit
+     */
+    public void setBandwidthKbps(int bandwidthKbps) {
+        this.bandwidthKbps = bandwidthKbps;
+    }
+
+    /**
+     * Sets how long each response body takes to be sent, after the response headers.
+     * The body is sent in small pieces spread over this time.
+     * @param slowBody the time to spend sending the body, or zero to send it at once
+     */
+    public void setSlowBody(Duration slowBody) {
+        this.slowBodyMicros = slowBody.toNanos() / 1000;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            int status;
+            String message;
+            if (!exchange.getRequestURI().getPath().equals(PATH)) {
+                status = 404;
+                message = "Not found";
+            } else if (!exchange.getRequestMethod().equals("POST")) {
+                status = 405;
+                message = "Method not allowed";
+            } else {
+                requests.incrementAndGet();
+                int numLabels = readRequest(exchange);
+                double roll = ThreadLocalRandom.current().nextDouble();
+                if (numLabels < 0) {
+                    status = 422;
+                    message = "Invalid print job";
+                } else if (roll < errorRate) {
+                    status = 500;
+                    message = "Simulated internal server error";
+                } else if (roll < errorRate + notFoundRate) {
+                    status = 404;
+                    message = "Simulated printer not found";
+                } else {
+                    status = 200;
+                    message = null;
+                    labels.add(numLabels);
+                }
+                pause(latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(jitterMicros + 1) : 0));
+            }
+            statusCounts.computeIfAbsent(status, k -> new LongAdder()).increment();
+            respond(exchange, status, message);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads and checks the print request in the body of the exchange.
+     * @return the number of labels in the request, or -1 if it is not a valid print request
+     */
+    private int readRequest(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = new ThrottledInputStream(exchange.getRequestBody())) {
+            body = in.readAllBytes();
+        }
+        InputStream in = new ByteArrayInputStream(body);
+        try {
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+        } catch (ZipException e) {
+            return -1;
+        }
+        try (JsonReader reader = Json.createReader(in)) {
+            JsonObject attributes = reader.readObject().getJsonObject("data").getJsonObject("attributes");
+            if (attributes.getString("printer_name", "").isEmpty()) {
+                return -1;
+            }
+            attributes.getInt("label_template_id");
+            return attributes.getJsonObject("labels").getJsonArray("body").size();
+        } catch (JsonException | ClassCastException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message==null ? "{}" : "{\"errors\":[{\"title\":\""+message+"\"}]}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        long slowBody = slowBodyMicros;
+        if (slowBody <= 0) {
+            out.write(body);
+        } else {
+            int chunk = Math.max(1, (body.length + SLOW_BODY_CHUNKS - 1) / SLOW_BODY_CHUNKS);
+            for (int start = 0; start < body.length; start += chunk) {
+                out.flush();
+                pause(slowBody / SLOW_BODY_CHUNKS);
+                out.write(body, start, Math.min(chunk, body.length - start));
+            }
+        }
+        out.close();
+    }
+
+    private static void pause(long micros) throws IOException {
+        if (micros <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Gets the url to which print requests should be posted.
+     */
+    public String getUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://"+address.getAddress().getHostAddress()+":"+address.getPort()+PATH;
+    }
+
+    /**
+     * Gets the number of print requests received.
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Gets the number of labels in the print requests that were accepted.
+     */
+    public long getLabels() {
+        return this.labels.sum();
+    }
+
+    /**
+     * Gets the number of responses sent with each status code.
+     * @return a map from status code to the number of responses with that status, in order of status code
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        statusCounts.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reads the request body in chunks, pausing after each chunk if the bandwidth is limited.
+     */
+    private class ThrottledInputStream extends InputStream {
+        private final InputStream in;
+
+        ThrottledInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, Math.min(len, CHUNK_SIZE));
+            int kbps = bandwidthKbps;
+            if (n > 0 && kbps > 0) {
+                pause(n * 8_000L / kbps);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.sanger.hcaprint.LabelData;
+import uk.ac.sanger.hcaprint.LabelParser;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for parsing pasted clipboard text into labels.
+ * @author dr6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        text = BenchmarkData.clipboardText(rows);
+    }
+
+    /** Splitting the text into lines, then parsing each line separately. */
+    @Benchmark
+    public void splitLines(Blackhole bh) {
+        for (String line : text.split("\n")) {
+            LabelData data = LabelData.fromLine(line);
+            if (data!=null) {
+                bh.consume(data);
+            }
+        }
+    }
+
+    /** Parsing the whole text in one pass, as the paste button does. */
+    @Benchmark
+    public List<LabelData> parseText() {
+        List<LabelData> labels = new ArrayList<>();
+        LabelParser.parse(text, labels::add);
+        return labels;
+    }
+
+    /** Parsing the text from a reader, as the command line mode does. */
+    @Benchmark
+    public void parseReader(Blackhole bh) throws IOException {
+        try (LabelParser parser = new LabelParser(new StringReader(text))) {
+            LabelData data;
+            while ((data = parser.next())!=null) {
+                bh.consume(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.sanger.hcaprint.PMBClient;
+import uk.ac.sanger.hcaprint.PrintRequest;
+import uk.ac.sanger.hcaprint.PrintResult;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for posting print requests, end to end, to an in-process stub server.
+ * @author dr6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrintBenchmark {
+    @Param({"1", "100", "1000"})
+    public int labels;
+
+    private StubServer server;
+    private PMBClient client;
+    private PrintRequest request;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubServer();
+        client = new PMBClient(server.getUrl(), null);
+        request = new PrintRequest(BenchmarkData.labels(labels), "printer", BenchmarkData.config());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    /** Posting with the blocking client, reusing kept-alive connections. */
+    @Benchmark
+    public void print() throws IOException {
+        client.print(request);
+    }
+
+    /** Posting with the asynchronous client, and waiting for the result. */
+    @Benchmark
+    public PrintResult printAsync() {
+        return client.printAsync(request).join();
+    }
+}
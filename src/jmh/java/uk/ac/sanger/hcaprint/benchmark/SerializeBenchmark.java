@@ -0,0 +1,49 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.sanger.hcaprint.PrintRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Benchmarks for serialising print requests as JSON.
+ * @author dr6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int labels;
+
+    private PrintRequest request;
+
+    @Setup
+    public void setUp() {
+        request = new PrintRequest(BenchmarkData.labels(labels), "printer", BenchmarkData.config());
+    }
+
+    /** Building the whole JSON value, then converting it to a string. */
+    @Benchmark
+    public String jsonValue() {
+        return request.getJsonValue().toString();
+    }
+
+    /** Streaming the request to an output stream, as it is posted to PrintMyBarcode. */
+    @Benchmark
+    public void writeToStream() {
+        request.writeTo(OutputStream.nullOutputStream());
+    }
+
+    /** Streaming the request through gzip compression, as it is posted when compression is enabled. */
+    @Benchmark
+    public void writeCompressed() throws IOException {
+        request.writeTo(new GZIPOutputStream(OutputStream.nullOutputStream(), 8192));
+    }
+}
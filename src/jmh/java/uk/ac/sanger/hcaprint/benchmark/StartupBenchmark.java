@@ -0,0 +1,108 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark for how long the application takes to start: each invocation launches the application jar in a new
+ * JVM with {@code exit_after_startup=true}, and waits for it to exit once its window has been shown.
+ * <p>The {@code share} parameter selects the class-data sharing:
+ * {@code off} disables it; {@code default} uses the JDK's own archive; {@code app} uses an archive of the
+ * application's startup classes, created (in the same two steps as the {@code cds} profile in the pom, which
+ * also work on Java 11) when the trial is set up.
+ * <p>The jar is built in the package phase, and found at {@code target/hcaprint-1.0-SNAPSHOT-jar-with-dependencies.jar},
+ * or at the path given by the system property {@code hcaprint.jar}.
+ * The benchmark needs a display (e.g. run it under {@code xvfb-run}); it fails on a headless machine.
+ * @author dr6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    @Param({"off", "default", "app"})
+    public String share;
+
+    private Path tempDir;
+    private List<String> command;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new IllegalStateException("StartupBenchmark needs a display.");
+        }
+        Path jar = Paths.get(System.getProperty("hcaprint.jar", "target/hcaprint-1.0-SNAPSHOT-jar-with-dependencies.jar"));
+        if (!Files.isRegularFile(jar)) {
+            throw new IllegalStateException("Application jar not found: "+jar.toAbsolutePath());
+        }
+        tempDir = Files.createTempDirectory("hcaprint-startup");
+        String vmOption = null;
+        if (share.equals("off")) {
+            vmOption = "-Xshare:off";
+        } else if (share.equals("app")) {
+            Path classList = tempDir.resolve("classes.lst");
+            Path archive = tempDir.resolve("hcaprint.jsa");
+            launch(command(List.of("-Xshare:off", "-XX:DumpLoadedClassList="+classList), jar));
+            launch(List.of(javaCommand(), "-Xshare:dump", "-XX:SharedClassListFile="+classList,
+                    "-XX:SharedArchiveFile="+archive, "-cp", jar.toString()));
+            vmOption = "-XX:SharedArchiveFile="+archive;
+        }
+        command = command(vmOption==null ? List.of() : List.of(vmOption), jar);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (tempDir!=null) {
+            try (Stream<Path> paths = Files.walk(tempDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Builds the command to launch the application, keeping its metrics, history and queue out of the user's files.
+     */
+    private List<String> command(List<String> vmOptions, Path jar) {
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand());
+        command.addAll(vmOptions);
+        command.add("-jar");
+        command.add(jar.toString());
+        command.add("exit_after_startup=true");
+        command.add("metrics_flush_interval=0");
+        command.add("print_history=false");
+        command.add("queue_file="+tempDir.resolve("print_queue.journal"));
+        return command;
+    }
+
+    private static String javaCommand() {
+        return ProcessHandle.current().info().command().orElse("java");
+    }
+
+    private static void launch(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        int exitCode = process.waitFor();
+        if (exitCode!=0) {
+            throw new IOException("Application exited with status "+exitCode+": "+command);
+        }
+    }
+
+    /** Launching the application and waiting for it to exit after showing its window. */
+    @Benchmark
+    public void startUp() throws IOException, InterruptedException {
+        launch(command);
+    }
+}
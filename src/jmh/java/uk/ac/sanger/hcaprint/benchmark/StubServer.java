@@ -0,0 +1,147 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-process HTTP server that accepts print requests and discards them.
+ * Gzip-compressed requests are decompressed (or rejected with 415, if the server is set not to accept them).
+ * The server can simulate a slow link by limiting how fast it reads request bodies.
+ * It counts the bytes of the request bodies it receives, as they were sent on the wire.
+ * @author dr6
+ */
+public class StubServer implements AutoCloseable {
+    static {
+        // Without this, the JDK server's small writes interact with delayed acks,
+        // adding about 40ms to every request on a kept-alive connection.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final byte[] RESPONSE = "{}".getBytes();
+    private static final int CHUNK_SIZE = 4096;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int bandwidthKbps;
+    private final boolean acceptGzip;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * Starts a server on an ephemeral port on the loopback interface, reading as fast as possible,
+     * and accepting compressed requests.
+     * @exception IOException the server could not be started
+     */
+    public StubServer() throws IOException {
+        this(0, true);
+    }
+
+    /**
+     * Starts a server on an ephemeral port on the loopback interface.
+     * @param bandwidthKbps the rate in kilobits per second at which to read request bodies, or 0 for no limit
+     * @param acceptGzip whether to accept gzip-compressed requests; if false, they are rejected with 415
+     * @exception IOException the server could not be started
+     */
+    public StubServer(int bandwidthKbps, boolean acceptGzip) throws IOException {
+        this.bandwidthKbps = bandwidthKbps;
+        this.acceptGzip = acceptGzip;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/v1/print_jobs", this::handle);
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        int status = (gzip && !acceptGzip ? 415 : 200);
+        try (InputStream in = new CountingInputStream(exchange.getRequestBody())) {
+            if (gzip && status==200) {
+                new GZIPInputStream(in).transferTo(OutputStream.nullOutputStream());
+            } else {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        requests.incrementAndGet();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, RESPONSE.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(RESPONSE);
+        }
+    }
+
+    /**
+     * Gets the url to which print requests should be posted.
+     */
+    public String getUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://"+address.getAddress().getHostAddress()+":"+address.getPort()+"/v1/print_jobs";
+    }
+
+    /**
+     * Gets the mean number of bytes received in each request body, or 0 if there have been no requests.
+     */
+    public long getMeanBytesPerRequest() {
+        long n = requests.get();
+        return (n==0 ? 0 : bytesReceived.get() / n);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * Counts the bytes read from the request body, pausing after each chunk if the bandwidth is limited.
+     */
+    private class CountingInputStream extends InputStream {
+        private final InputStream in;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, Math.min(len, CHUNK_SIZE));
+            if (n > 0) {
+                bytesReceived.addAndGet(n);
+                if (bandwidthKbps > 0) {
+                    pause(n * 8_000L / bandwidthKbps);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void pause(long micros) throws IOException {
+            try {
+                Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package uk.ac.sanger.hcaprint.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.sanger.hcaprint.LabelData;
+import uk.ac.sanger.hcaprint.LabelValidator;
+import uk.ac.sanger.hcaprint.LabelValidator.Rule;
+import uk.ac.sanger.hcaprint.PrintRequest.Field;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for checking pasted labels against validation rules.
+ * @author dr6
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidateBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private List<LabelData> labels;
+    private LabelValidator validator;
+
+    @Setup
+    public void setUp() {
+        labels = BenchmarkData.labels(rows);
+        List<Rule> barcodeRules = List.of(LabelValidator.patternRule("HCA\\d{8}"),
+                LabelValidator.lengthRule("11"), LabelValidator.checksumRule("luhn"));
+        List<Rule> dateRules = List.of(LabelValidator.patternRule("\\d{4}-\\d{2}-\\d{2}"));
+        validator = new LabelValidator(Map.of(Field.BARCODE, barcodeRules, Field.DATE, dateRules));
+    }
+
+    /** Checking each label in turn, on one thread. */
+    @Benchmark
+    public int sequential() {
+        int invalid = 0;
+        for (LabelData label : labels) {
+            if (!validator.isValid(label)) {
+                ++invalid;
+            }
+        }
+        return invalid;
+    }
+
+    /** Checking the labels in parallel, as the paste button does. */
+    @Benchmark
+    public int[] parallel() {
+        return validator.findInvalid(labels);
+    }
+}
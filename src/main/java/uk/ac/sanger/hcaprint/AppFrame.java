@@ -3,10 +3,19 @@ package uk.ac.sanger.hcaprint;
 import uk.ac.sanger.hcaprint.PrintRequest.Field;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.table.*;
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Component;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.*;
 
@@ -15,27 +24,80 @@ import java.util.stream.*;
  * @author dr6
  */
 public class AppFrame extends JFrame {
+    /** The number of pasted rows to add to the table at a time */
+    private static final int PASTE_CHUNK_SIZE = 10_000;
+    /** The background colour for rows whose barcode appears on an earlier row */
+    private static final Color DUPLICATE_COLOUR = new Color(255, 224, 178);
+    /** The background colour for rows whose barcode is in the print history */
+    private static final Color PRINTED_COLOUR = new Color(200, 230, 201);
+    /** The background colour for rows that break the validation rules */
+    private static final Color INVALID_COLOUR = new Color(255, 205, 210);
+    /** How long to wait after the print settings change before preparing the print in the background */
+    private static final int PREPARE_DELAY_MILLIS = 300;
+    /** The number of rows either side of the selected row whose labels are drawn ahead for the preview */
+    private static final int PREVIEW_NEARBY_ROWS = 10;
+
     private JTable table;
     private FunctionalTableModel<LabelData> tableModel;
     private JScrollPane scrollPane;
+    private LabelPreview labelPreview;
     private JSpinner firstIndexField, lastIndexField;
     private JButton pasteButton;
     private JButton clearButton;
     private JComboBox<String> printerCombo;
+    private JComboBox<FanOut> fanOutCombo;
     private JButton printButton;
-    private Properties config;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private JLabel queueLabel;
+    private JCheckBox uniqueOnlyBox;
+    private JCheckBox skipPrintedBox;
+    private JCheckBox skipInvalidBox;
+    private final PrintConfig config;
+    private List<String> printers;
+
+    private PMBClient pmbClient;
+    private PrintScheduler printScheduler;
+    private PrintWorker printWorker;
+    private boolean pasting;
+    private PreparedPrint preparedPrint;
+    private SwingWorker<Void, Void> prepareWorker;
+    private Timer prepareTimer;
+    private int printStartRow;
+    private int printEndRow;
+    private int[] printRows;
+    private BarcodeIndex barcodeIndex;
+    private PrintHistory printHistory;
+    private final BitSet printedRows = new BitSet();
+    private final BitSet invalidRows = new BitSet();
+    /** Incremented for each paste or clear, so that validation results for an earlier paste are ignored */
+    private int pasteCount;
+    private PrintQueue printQueue;
+    private PrintMetrics printMetrics;
 
     /**
      * Constructs an AppFrame using the given config.
-     * The config keys should include "printers", "pmb_url" and (optionally) "proxy".
+     * Only the components of the window are created here. The metrics, print history and print queue,
+     * which are not needed to show the window, are set up by a task queued on the event dispatch thread,
+     * so that if the frame is constructed and shown in the same event, it is shown first.
      */
-    public AppFrame(Properties config) {
+    public AppFrame(PrintConfig config) {
         super(config.getProperty("app_title", "Print tool"));
         this.config = config;
 
         initComponents();
         layOutComponents();
         setUpMenuBar();
+        SwingUtilities.invokeLater(this::initServices);
+    }
+
+    /**
+     * Sets up the parts of the application that are not needed to show the window.
+     */
+    private void initServices() {
+        initMetrics();
+        initPrintHistory();
+        initPrintQueue();
     }
 
     /**
@@ -46,6 +108,12 @@ public class AppFrame extends JFrame {
         tableModel = createTableModel(enabledFields);
         table = setUpTable(tableModel);
         scrollPane = new JScrollPane(table);
+        labelPreview = new LabelPreview(config);
+        table.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                updatePreview();
+            }
+        });
 
         firstIndexField = setUpSpinner(1, 1, 1);
         lastIndexField = setUpSpinner(1, 1, 1);
@@ -57,19 +125,59 @@ public class AppFrame extends JFrame {
         clearButton = new JButton("Clear");
         clearButton.addActionListener(e -> performClear());
         clearButton.setVisible(false);
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(e -> performCancel());
+        cancelButton.setVisible(false);
+        queueLabel = new JLabel();
+        queueLabel.setVisible(false);
+        uniqueOnlyBox = new JCheckBox();
+        uniqueOnlyBox.setToolTipText("Print only the first row with each barcode");
+        uniqueOnlyBox.setVisible(false);
+        uniqueOnlyBox.addActionListener(e -> invalidatePreparedPrint());
+        skipPrintedBox = new JCheckBox();
+        skipPrintedBox.setToolTipText("Do not print rows whose barcode has been printed before");
+        skipPrintedBox.setVisible(false);
+        skipPrintedBox.addActionListener(e -> invalidatePreparedPrint());
+        skipInvalidBox = new JCheckBox();
+        skipInvalidBox.setVisible(false);
+        skipInvalidBox.addActionListener(e -> invalidatePreparedPrint());
+        if (config.isBlockInvalid()) {
+            skipInvalidBox.setSelected(true);
+            skipInvalidBox.setToolTipText("Rows that break the validation rules cannot be printed");
+        } else {
+            skipInvalidBox.setToolTipText("Do not print rows that break the validation rules");
+        }
+        prepareTimer = new Timer(PREPARE_DELAY_MILLIS, e -> startPreparing());
+        prepareTimer.setRepeats(false);
 
-        String[] printers = Arrays.stream(config.getProperty("printers", "").split(","))
-                .map(String::trim)
-                .filter(s -> !s.isEmpty())
-                .toArray(String[]::new);
-        printerCombo = new JComboBox<>(printers);
+        printers = config.getPrinters();
+        printerCombo = new JComboBox<>(printers.toArray(new String[0]));
         printerCombo.setEditable(false);
+        printerCombo.addActionListener(e -> invalidatePreparedPrint());
+        fanOutCombo = new JComboBox<>(FanOut.values());
+        fanOutCombo.setEditable(false);
+        fanOutCombo.addActionListener(e -> {
+            printerCombo.setEnabled(getFanOut()==FanOut.SINGLE);
+            invalidatePreparedPrint();
+        });
+        fanOutCombo.setVisible(printers.size() > 1);
     }
 
     private void setUpMenuBar() {
         JMenuBar menuBar = new JMenuBar();
+        JMenu viewMenu = menuBar.add(new JMenu("View"));
+        JCheckBoxMenuItem previewItem = new JCheckBoxMenuItem("Label preview", labelPreview.isVisible());
+        previewItem.addActionListener(e -> {
+            labelPreview.setVisible(previewItem.isSelected());
+            updatePreview();
+        });
+        viewMenu.add(previewItem);
         JMenu helpMenu = menuBar.add(new JMenu("Help"));
         helpMenu.add("View config").addActionListener(e -> viewConfig());
+        helpMenu.add("Metrics").addActionListener(e -> viewMetrics());
         setJMenuBar(menuBar);
     }
 
@@ -84,6 +192,8 @@ public class AppFrame extends JFrame {
         printerPanel.add(Box.createHorizontalStrut(20));
         printerPanel.add(new JLabel("Printer:"));
         printerPanel.add(printerCombo);
+        printerPanel.add(Box.createHorizontalStrut(5));
+        printerPanel.add(fanOutCombo);
         printerPanel.add(Box.createHorizontalGlue());
 
         Box printPanel = Box.createHorizontalBox();
@@ -95,10 +205,20 @@ public class AppFrame extends JFrame {
         printPanel.add(new JLabel("to"));
         printPanel.add(Box.createHorizontalStrut(5));
         printPanel.add(lastIndexField);
+        printPanel.add(Box.createHorizontalStrut(5));
+        printPanel.add(uniqueOnlyBox);
+        printPanel.add(skipPrintedBox);
+        printPanel.add(skipInvalidBox);
         printPanel.add(Box.createHorizontalStrut(20));
         printPanel.add(printButton);
+        printPanel.add(progressBar);
+        printPanel.add(Box.createHorizontalStrut(5));
+        printPanel.add(cancelButton);
         printPanel.add(Box.createHorizontalGlue());
 
+        JPanel queuePanel = new JPanel();
+        queuePanel.add(queueLabel);
+
         JPanel explainPanel = new JPanel();
         explainPanel.add(new JLabel(getExplanation()));
 
@@ -109,19 +229,158 @@ public class AppFrame extends JFrame {
         bottomPanel.add(printerPanel);
         bottomPanel.add(Box.createVerticalStrut(5));
         bottomPanel.add(printPanel);
-        bottomPanel.add(Box.createVerticalStrut(10));
+        bottomPanel.add(queuePanel);
+        bottomPanel.add(Box.createVerticalStrut(5));
 
         JPanel cp = new JPanel(new BorderLayout());
         cp.add(scrollPane, BorderLayout.CENTER);
+        cp.add(labelPreview, BorderLayout.EAST);
         cp.add(bottomPanel, BorderLayout.SOUTH);
         setContentPane(cp);
     }
 
+    /**
+     * Sets up the metrics recording how print requests perform.
+     * Each request is also logged to a CSV file, given by the config property "metrics_file" (defaulting to
+     * a file in the user's home directory), which is appended to every "metrics_flush_interval" seconds.
+     * If the interval is zero, requests are not logged to a file.
+     */
+    private void initMetrics() {
+        printMetrics = new PrintMetrics();
+        Duration interval = config.getMetricsFlushInterval();
+        if (interval==null) {
+            return;
+        }
+        Path file = config.getFile("metrics_file", "print_metrics.csv");
+        try {
+            printMetrics.startLog(file, interval);
+        } catch (IOException e) {
+            System.err.println("Could not set up print metrics log at "+file);
+            e.printStackTrace();
+            return;
+        }
+        final PrintMetrics metrics = printMetrics;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                metrics.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "print-metrics-shutdown"));
+    }
+
+    /**
+     * Sets up the history of printed barcodes, unless the config property "print_history" is false.
+     * The history file is given by the config property "history_file", defaulting to a file in the
+     * user's home directory.
+     * The history is loaded in the background; when it has loaded, the rows already printed are highlighted.
+     */
+    private void initPrintHistory() {
+        if (!config.isPrintHistory()) {
+            return;
+        }
+        Path file = config.getFile("history_file", "print_history.log");
+        final PrintHistory history = new PrintHistory(file);
+        printHistory = history;
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                history.load();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (Exception e) {
+                    System.err.println("Could not load print history from "+file);
+                    e.printStackTrace();
+                }
+                updatePrinted(0);
+            }
+        }.execute();
+    }
+
+    /**
+     * Sets up the queue of print requests to be retried in the background, and loads any requests
+     * left over from a previous session.
+     * The journal file is given by the config property "queue_file", defaulting to a file in the
+     * user's home directory.
+     * The journal is loaded in the background, and the queue is not used until it has loaded.
+     * If the queue cannot be set up, printing still works, but failed requests cannot be queued.
+     */
+    private void initPrintQueue() {
+        Path journal = config.getFile("queue_file", "print_queue.journal");
+        Duration initialDelay = config.getRetryInitialDelay();
+        Duration maxDelay = config.getRetryMaxDelay();
+        int maxAttempts = config.getRetryMaxAttempts();
+        PrintQueue queue = new PrintQueue(journal, getPrintScheduler(), config,
+                initialDelay!=null ? initialDelay : Duration.ofSeconds(5),
+                maxDelay!=null ? maxDelay : Duration.ofMinutes(5),
+                maxAttempts > 0 ? maxAttempts : 50);
+        queue.setListener(new PrintQueue.Listener() {
+            @Override
+            public void queueChanged(int numRequests, int numLabels) {
+                SwingUtilities.invokeLater(() -> updateQueueLabel(numRequests, numLabels));
+            }
+
+            @Override
+            public void requestSent(PrintRequest request) {
+                SwingUtilities.invokeLater(() -> markPrinted(Collections.singletonList(request)));
+            }
+
+            @Override
+            public void requestRejected(PrintRequest request, IOException exception) {
+                SwingUtilities.invokeLater(() -> showError(String.format(
+                        "A queued print request of %s labels for printer %s could not be printed:%n%s",
+                        request.size(), request.getPrinter(), exception.getMessage())));
+            }
+        });
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                queue.load();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    printQueue = queue;
+                } catch (Exception e) {
+                    System.err.println("Could not set up print queue at "+journal);
+                    e.printStackTrace();
+                    queue.close();
+                    Throwable cause = (e.getCause()!=null ? e.getCause() : e);
+                    queueLabel.setText("Failed prints cannot be queued: "+cause.getMessage());
+                    queueLabel.setVisible(true);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows how many print requests are waiting in the queue, or hides the label if there are none.
+     * @param numRequests the number of requests waiting
+     * @param numLabels the number of labels in the waiting requests
+     */
+    private void updateQueueLabel(int numRequests, int numLabels) {
+        queueLabel.setText(String.format("%s labels (%s requests) waiting to be retried.", numLabels, numRequests));
+        queueLabel.setVisible(numRequests > 0);
+    }
+
     private void viewConfig() {
-        ConfigPanel configPanel = new ConfigPanel(this.config);
+        ConfigPanel configPanel = new ConfigPanel(this.config.getProperties());
         configPanel.showDialog(this);
     }
 
+    private void viewMetrics() {
+        MetricsPanel metricsPanel = new MetricsPanel(this.printMetrics);
+        metricsPanel.showDialog(this);
+    }
+
     private String getExplanation() {
         switch (tableModel.getColumnCount()) {
             case 0: case 1:
@@ -140,11 +399,7 @@ public class AppFrame extends JFrame {
 
     private Set<Field> findEnabledFields() {
         Set<Field> fields = EnumSet.noneOf(Field.class);
-        for (Field field : Field.values()) {
-            if (!config.getProperty(field.propertyName(), "").trim().isEmpty()) {
-                fields.add(field);
-            }
-        }
+        fields.addAll(config.getFieldNames().keySet());
         return fields;
     }
 
@@ -188,7 +443,26 @@ public class AppFrame extends JFrame {
      * @return the new table
      */
     private JTable setUpTable(TableModel tableModel) {
-        JTable table = new JTable(tableModel);
+        JTable table = new JTable(tableModel) {
+            @Override
+            public Component prepareRenderer(TableCellRenderer renderer, int row, int column) {
+                Component comp = super.prepareRenderer(renderer, row, column);
+                if (!isRowSelected(row)) {
+                    Color colour = getRowColour(convertRowIndexToModel(row));
+                    if (colour!=null) {
+                        comp.setBackground(colour);
+                    }
+                }
+                return comp;
+            }
+
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int row = rowAtPoint(event.getPoint());
+                return (row < 0 ? null : getRowToolTip(convertRowIndexToModel(row)));
+            }
+        };
+        ToolTipManager.sharedInstance().registerComponent(table);
         table.setCellSelectionEnabled(false);
         TableColumnModel columnModel = table.getColumnModel();
         TableCellRenderer renderer = table.getDefaultRenderer(Integer.class);
@@ -205,6 +479,73 @@ public class AppFrame extends JFrame {
         return table;
     }
 
+    /**
+     * Shows the label for the selected row in the preview, if the preview is visible.
+     * The labels of the rows around it are given to the preview to draw ahead, nearest first.
+     */
+    private void updatePreview() {
+        if (!labelPreview.isVisible()) {
+            return;
+        }
+        int viewRow = table.getSelectionModel().getLeadSelectionIndex();
+        final int numRows = table.getRowCount();
+        if (viewRow < 0 || viewRow >= numRows || !table.isRowSelected(viewRow)) {
+            labelPreview.showLabel(null, Collections.emptyList());
+            return;
+        }
+        List<LabelData> nearby = new ArrayList<>(2 * PREVIEW_NEARBY_ROWS);
+        for (int offset = 1; offset <= PREVIEW_NEARBY_ROWS; ++offset) {
+            if (viewRow + offset < numRows) {
+                nearby.add(tableModel.getRow(table.convertRowIndexToModel(viewRow + offset)));
+            }
+            if (viewRow - offset >= 0) {
+                nearby.add(tableModel.getRow(table.convertRowIndexToModel(viewRow - offset)));
+            }
+        }
+        labelPreview.showLabel(tableModel.getRow(table.convertRowIndexToModel(viewRow)), nearby);
+    }
+
+    /**
+     * Gets the colour in which to highlight the given row, if it should be highlighted.
+     * Rows that break the validation rules are highlighted, as are rows whose barcode appears on an earlier row,
+     * and rows whose barcode has been printed before.
+     * @param row the index of the row in the table model
+     * @return the background colour for the row, or null if it should not be highlighted
+     */
+    private Color getRowColour(int row) {
+        if (invalidRows.get(row)) {
+            return INVALID_COLOUR;
+        }
+        if (barcodeIndex!=null && barcodeIndex.isDuplicate(row)) {
+            return DUPLICATE_COLOUR;
+        }
+        if (printedRows.get(row)) {
+            return PRINTED_COLOUR;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the tool tip explaining why the given row is highlighted.
+     * @param row the index of the row in the table model
+     * @return a description of the row, or null if it is not highlighted
+     */
+    private String getRowToolTip(int row) {
+        String duplicate = (barcodeIndex!=null && barcodeIndex.isDuplicate(row)
+                ? "Duplicate of row "+(barcodeIndex.getFirstRow(row)+1) : null);
+        String tip = duplicate;
+        if (printedRows.get(row)) {
+            tip = (duplicate==null ? "Already printed" : duplicate+"; already printed");
+        }
+        if (invalidRows.get(row)) {
+            String problem = config.getValidator().check(tableModel.getRow(row));
+            if (problem!=null) {
+                tip = (tip==null ? problem : problem+"; "+tip);
+            }
+        }
+        return tip;
+    }
+
     /**
      * Creates a int spinner and returns it.
      * Setting up includes adding {@link #rangeChanged} as a ChangeListener, and adjusting the
@@ -227,11 +568,15 @@ public class AppFrame extends JFrame {
 
     /**
      * Are we ready to print?
-     * We are ready to print if the table has rows, and the min and max spinners specify a
-     * nonempty range of rows.
+     * We are ready to print if no print is already in progress, no paste is still being added to the table,
+     * the table has rows, and the min and max spinners specify a nonempty range of rows.
+     * (Until a paste has finished, the duplicate, printed and invalid rows are not all known.)
      * @return true if we're ready to print, otherwise false
      */
     private boolean canPrint() {
+        if (printWorker!=null || pasting) {
+            return false;
+        }
         Integer min = (Integer) firstIndexField.getValue();
         Integer max = (Integer) lastIndexField.getValue();
         return (min != null && max != null && min <= max && min > 0 && max <= tableModel.getRowCount());
@@ -239,26 +584,83 @@ public class AppFrame extends JFrame {
 
     /**
      * This is triggered when the spinners are adjusted.
-     * It enables or disables the print button, according to {@link #canPrint}.
+     * It enables or disables the print button, according to {@link #canPrint},
+     * and {@link #invalidatePreparedPrint invalidates} any print prepared for the previous range.
      */
     private void rangeChanged() {
         printButton.setEnabled(canPrint());
+        invalidatePreparedPrint();
+    }
+
+    /**
+     * Discards any print prepared for the previous settings (range, printer, options or table contents),
+     * and schedules a new one to be prepared once the settings stop changing.
+     */
+    private void invalidatePreparedPrint() {
+        preparedPrint = null;
+        if (prepareWorker!=null) {
+            prepareWorker.cancel(false);
+            prepareWorker = null;
+        }
+        if (prepareTimer!=null) {
+            prepareTimer.restart();
+        }
+    }
+
+    /**
+     * Prepares the print for the current settings in the background, so that when the print button is pressed
+     * the requests can be sent straight away.
+     * The requests are created on the event dispatch thread, and their JSON is serialized by a background worker.
+     * Nothing is prepared while a paste or a print is in progress, or if there is nothing to print.
+     */
+    private void startPreparing() {
+        if (pasting || !canPrint() || preparedPrint!=null) {
+            return;
+        }
+        final PreparedPrint print = createPrint(message -> {});
+        if (print==null) {
+            return;
+        }
+        preparedPrint = print;
+        prepareWorker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() {
+                for (List<PrintRequest> batches : print.printerBatches.values()) {
+                    for (PrintRequest batch : batches) {
+                        if (isCancelled()) {
+                            return null;
+                        }
+                        batch.prepare();
+                    }
+                }
+                return null;
+            }
+        };
+        prepareWorker.execute();
     }
 
     /**
      * Is a warm-up label enabled?
-     * Checks config for the property "warm_up".
-     * Defaults to false.
-     * @return true if warm-up is enabled, otherwise false
+     * @return true if warm-up is enabled in the config, otherwise false
      */
     private boolean isWarmUpEnabled() {
-        return Boolean.parseBoolean(config.getProperty("warm_up"));
+        return config.isWarmUp();
+    }
+
+    /**
+     * Gets the maximum number of labels to send in each print request.
+     * @return the batch size, or zero if the labels should not be split into batches
+     */
+    private int getBatchSize() {
+        return config.getBatchSize();
     }
 
     /**
      * The behaviour of the paste button.
      * Tries to read the clipbaord. Tries to convert it to a list of label data,
      * and to put that in the table.
+     * The text is parsed in the background, and the rows are added to the table in chunks as they
+     * are parsed, so that a very large paste does not freeze the window.
      * If reading the clipboard fails, an error will be shown to the user.
      */
     private void performPaste() {
@@ -270,26 +672,251 @@ public class AppFrame extends JFrame {
             showError("The clipboard could not be read.");
             return;
         }
-        List<LabelData> rows = Arrays.stream(data.split("\n"))
-                .map(LabelData::fromLine)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-        tableModel.setItems(rows);
-        updateSpinnerMax(firstIndexField, rows.size());
-        updateSpinnerMax(lastIndexField, rows.size());
+        LabelStore store = new LabelStore();
+        tableModel.setItems(store);
+        barcodeIndex = new BarcodeIndex(store);
+        invalidRows.clear();
+        updateInvalid();
+        final int paste = ++pasteCount;
+        final LabelValidator validator = config.getValidator();
+        pasteButton.setEnabled(false);
+        pasting = true;
+        printButton.setEnabled(false);
+        invalidatePreparedPrint();
+        new SwingWorker<Void, List<LabelData>>() {
+            private int rowsParsed;
+
+            @Override
+            protected Void doInBackground() {
+                List<LabelData> chunk = new ArrayList<>(PASTE_CHUNK_SIZE);
+                LabelParser.parse(data, row -> {
+                    chunk.add(row);
+                    if (chunk.size() >= PASTE_CHUNK_SIZE) {
+                        publishChunk(new ArrayList<>(chunk));
+                        chunk.clear();
+                    }
+                });
+                if (!chunk.isEmpty()) {
+                    publishChunk(chunk);
+                }
+                return null;
+            }
+
+            /**
+             * Publishes a chunk of rows to be added to the table, and checks them against the validation rules.
+             * The invalid rows are marked in the table when the check is done.
+             */
+            private void publishChunk(List<LabelData> chunk) {
+                final int fromRow = rowsParsed;
+                rowsParsed += chunk.size();
+                publish(chunk);
+                if (validator.hasRules()) {
+                    int[] invalid = validator.findInvalid(chunk);
+                    if (invalid.length > 0) {
+                        SwingUtilities.invokeLater(() -> markInvalid(paste, fromRow, invalid));
+                    }
+                }
+            }
+
+            @Override
+            protected void process(List<List<LabelData>> chunks) {
+                final int fromRow = tableModel.getRowCount();
+                for (List<LabelData> chunk : chunks) {
+                    tableModel.addItems(chunk);
+                }
+                barcodeIndex.update();
+                updatePrinted(fromRow);
+            }
+
+            @Override
+            protected void done() {
+                pasteFinished();
+            }
+        }.execute();
+    }
+
+    /**
+     * Called when all the rows of a paste have been added to the table.
+     * Updates the range spinners and buttons.
+     */
+    private void pasteFinished() {
+        pasting = false;
+        final int numRows = tableModel.getRowCount();
+        updateSpinnerMax(firstIndexField, numRows);
+        updateSpinnerMax(lastIndexField, numRows);
         rangeChanged();
-        boolean gotRows = !rows.isEmpty();
+        updateDuplicates();
+        boolean gotRows = (numRows > 0);
         clearButton.setVisible(gotRows);
         pasteButton.setVisible(!gotRows);
+        pasteButton.setEnabled(true);
     }
 
     private void performClear() {
         tableModel.setItems(Collections.emptyList());
+        barcodeIndex = null;
+        ++pasteCount;
+        invalidRows.clear();
+        updateInvalid();
+        updateDuplicates();
+        updatePrinted(0);
         rangeChanged();
         clearButton.setVisible(false);
         pasteButton.setVisible(true);
     }
 
+    /**
+     * Shows the option to skip duplicate rows when printing, if the table contains any duplicates.
+     */
+    private void updateDuplicates() {
+        int numDuplicates = (barcodeIndex==null ? 0 : barcodeIndex.getDuplicateCount());
+        uniqueOnlyBox.setText(String.format("Skip duplicates (%s)", numDuplicates));
+        uniqueOnlyBox.setVisible(numDuplicates > 0);
+    }
+
+    /**
+     * Should rows that duplicate the barcode of an earlier row in the print range be left out of the print?
+     */
+    private boolean isUniqueOnly() {
+        return (barcodeIndex!=null && barcodeIndex.getDuplicateCount() > 0 && uniqueOnlyBox.isSelected());
+    }
+
+    /**
+     * Finds which rows of the table, from the given row onwards, have a barcode in the print history,
+     * and shows the option to skip them when printing, if there are any.
+     * @param fromRow the first row to check; rows before it are assumed not to have changed
+     */
+    private void updatePrinted(int fromRow) {
+        final int numRows = tableModel.getRowCount();
+        BitSet before = (BitSet) printedRows.clone();
+        printedRows.clear(fromRow, Math.max(fromRow, printedRows.length()));
+        if (printHistory!=null) {
+            for (int row = fromRow; row < numRows; ++row) {
+                if (printHistory.contains(tableModel.getRow(row).getBarcode())) {
+                    printedRows.set(row);
+                }
+            }
+        }
+        showPrinted(!printedRows.equals(before));
+    }
+
+    /**
+     * Marks the rows with the barcodes of the given requests as printed, if they are now in the print history.
+     * Only the barcodes of the requests are looked up, so this is quick however big the table is.
+     * @param requests requests that have been sent
+     */
+    private void markPrinted(Collection<PrintRequest> requests) {
+        if (printHistory==null || barcodeIndex==null) {
+            return;
+        }
+        boolean changed = false;
+        for (PrintRequest request : requests) {
+            for (LabelData label : request.getLabels()) {
+                String barcode = label.getBarcode();
+                int row = barcodeIndex.findFirstRow(barcode);
+                if (row >= 0 && !printedRows.get(row) && printHistory.contains(barcode)) {
+                    printedRows.set(row);
+                    changed = true;
+                }
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        // Rows that duplicate a printed row have been printed too
+        for (int row = barcodeIndex.nextDuplicate(0); row >= 0; row = barcodeIndex.nextDuplicate(row + 1)) {
+            if (!printedRows.get(row) && printedRows.get(barcodeIndex.getFirstRow(row))) {
+                printedRows.set(row);
+            }
+        }
+        showPrinted(true);
+    }
+
+    /**
+     * Shows the option to skip printed rows when printing, if there are any.
+     * @param changed whether the printed rows have changed, so the table must be repainted and
+     *        any prepared print discarded
+     */
+    private void showPrinted(boolean changed) {
+        int numPrinted = printedRows.cardinality();
+        skipPrintedBox.setText(String.format("Skip printed (%s)", numPrinted));
+        skipPrintedBox.setVisible(numPrinted > 0);
+        if (changed) {
+            table.repaint();
+            invalidatePreparedPrint();
+        }
+    }
+
+    /**
+     * Should rows whose barcode has been printed before be left out of the print?
+     */
+    private boolean isSkipPrinted() {
+        return (!printedRows.isEmpty() && skipPrintedBox.isSelected());
+    }
+
+    /**
+     * Marks rows of a paste that break the validation rules, so they are highlighted.
+     * @param paste the {@link #pasteCount} of the paste the rows came from; if the table has been pasted or
+     *        cleared since, the rows are not marked
+     * @param fromRow the index of the first row of the chunk that was checked
+     * @param invalid the indexes within the chunk of the invalid rows
+     */
+    private void markInvalid(int paste, int fromRow, int[] invalid) {
+        if (paste!=pasteCount) {
+            return;
+        }
+        for (int index : invalid) {
+            invalidRows.set(fromRow + index);
+        }
+        updateInvalid();
+    }
+
+    /**
+     * Shows the option to skip invalid rows when printing, if there are any.
+     * If the config blocks invalid rows, the option is always selected.
+     */
+    private void updateInvalid() {
+        int numInvalid = invalidRows.cardinality();
+        skipInvalidBox.setText(String.format("Skip invalid (%s)", numInvalid));
+        skipInvalidBox.setVisible(numInvalid > 0);
+        table.repaint();
+        invalidatePreparedPrint();
+    }
+
+    /**
+     * Should rows that break the validation rules be left out of the print?
+     */
+    private boolean isSkipInvalid() {
+        return (!invalidRows.isEmpty() && (config.isBlockInvalid() || skipInvalidBox.isSelected()));
+    }
+
+    /**
+     * Gets the rows in the given range that should be printed, if some of them are to be left out.
+     * Rows are left out if they {@link #isUniqueOnly duplicate an earlier row},
+     * {@link #isSkipPrinted have been printed before} or {@link #isSkipInvalid break the validation rules},
+     * as selected by the user (or required by the config).
+     * @param fromRow the first row of the range (inclusive)
+     * @param toRow the end of the range (exclusive)
+     * @return the indexes of the rows to print, in order; or null if every row in the range should be printed
+     */
+    private int[] getFilteredRows(int fromRow, int toRow) {
+        boolean uniqueOnly = isUniqueOnly();
+        boolean skipPrinted = isSkipPrinted();
+        boolean skipInvalid = isSkipInvalid();
+        if (!uniqueOnly && !skipPrinted && !skipInvalid) {
+            return null;
+        }
+        IntStream rows = (uniqueOnly ? Arrays.stream(barcodeIndex.uniqueRows(fromRow, toRow))
+                : IntStream.range(fromRow, toRow));
+        if (skipPrinted) {
+            rows = rows.filter(row -> !printedRows.get(row));
+        }
+        if (skipInvalid) {
+            rows = rows.filter(row -> !invalidRows.get(row));
+        }
+        return rows.toArray();
+    }
+
     /**
      * Adjusts the max value of the given int spinner.
      * If the new max is below the spinner's current value, the value is brought down.
@@ -306,67 +933,339 @@ public class AppFrame extends JFrame {
 
     /**
      * Gets the labeldata for printing.
-     * This is a range of rows from the table. The range is determined by the values in the range spinners.
+     * This is a range of rows from the table.
      * If the range is empty or invalid, an empty list will be returned.
+     * @param min the (1-based) first row of the range
+     * @param max the (1-based) last row of the range
+     * @param rows the rows to print, as given by {@link #getFilteredRows}, or null to print every row in the range
      * @return a list of labeldata for printing
      */
-    private List<LabelData> getValuesToPrint() {
-        Integer min = (Integer) firstIndexField.getValue();
-        Integer max = (Integer) lastIndexField.getValue();
-        if (min==null || max==null || min > max || min < 0 || max > tableModel.getRowCount()) {
+    private List<LabelData> getValuesToPrint(Integer min, Integer max, int[] rows) {
+        if (min==null || max==null || min > max || min < 1 || max > tableModel.getRowCount()) {
             return Collections.emptyList();
         }
-        Stream<LabelData> labelStream = IntStream.range(min-1, max).mapToObj(tableModel::getRow);
-        if (isWarmUpEnabled()) {
-            labelStream = Stream.concat(Stream.of(LabelData.warmUp()), labelStream);
+        if (rows!=null) {
+            return tableModel.getRows(rows);
         }
-        return labelStream.collect(Collectors.toList());
+        return tableModel.getRows(min-1, max);
+    }
+
+    /**
+     * Gets the row to resume printing from, after some labels of the last print were sent.
+     * @param rowsSent the number of rows from the table that were sent
+     * @return the (1-based) row number of the first row that was not sent
+     */
+    private int getResumeRow(int rowsSent) {
+        if (printRows==null) {
+            return printStartRow + rowsSent;
+        }
+        return (rowsSent < printRows.length ? printRows[rowsSent] + 1 : printEndRow + 1);
+    }
+
+    /**
+     * Adds a warm-up label to the start of the given labels, if warm-up is enabled.
+     * The labels are not copied: the returned list is a view of the given list.
+     * @param labels the labels to be sent to a printer
+     * @return a list of labels including the warm-up label, or the given list if warm-up is not enabled
+     */
+    private List<LabelData> withWarmUp(List<LabelData> labels) {
+        if (!isWarmUpEnabled()) {
+            return labels;
+        }
+        final LabelData warmUp = LabelData.warmUp();
+        return new AbstractList<LabelData>() {
+            @Override
+            public LabelData get(int index) {
+                return (index==0 ? warmUp : labels.get(index-1));
+            }
+
+            @Override
+            public int size() {
+                return labels.size() + 1;
+            }
+        };
+    }
+
+    /**
+     * Gets the way the labels should be distributed between printers.
+     * This is the value selected by the user, or {@link FanOut#SINGLE} if there is only one printer.
+     * @return the fan-out mode for printing
+     */
+    private FanOut getFanOut() {
+        FanOut fanOut = (FanOut) fanOutCombo.getSelectedItem();
+        return (fanOut==null || printers.size() <= 1 ? FanOut.SINGLE : fanOut);
+    }
+
+    /**
+     * Creates the print for the current settings.
+     * This creates a {@link PrintRequest} for each printer (according to the {@link FanOut fan-out mode}),
+     * using the template and fields from the application's config, split into batches.
+     * @param errorHandler receives a message describing why the print could not be created
+     * @return the print, or null if it could not be created
+     */
+    private PreparedPrint createPrint(Consumer<String> errorHandler) {
+        Integer min = (Integer) firstIndexField.getValue();
+        Integer max = (Integer) lastIndexField.getValue();
+        int[] rows = (min!=null && max!=null && min >= 1 && min <= max && max <= tableModel.getRowCount()
+                ? getFilteredRows(min-1, max) : null);
+        List<LabelData> values = getValuesToPrint(min, max, rows);
+        if (values.isEmpty()) {
+            errorHandler.accept("Nothing to print.");
+            return null;
+        }
+
+        Map<String, List<LabelData>> printerValues = getFanOut().distribute(values,
+                (String) printerCombo.getSelectedItem(), printers);
+        final int batchSize = getBatchSize();
+        Map<String, List<PrintRequest>> printerBatches = new LinkedHashMap<>(printerValues.size());
+        printerValues.forEach((printer, labels) -> {
+            PrintRequest request = new PrintRequest(withWarmUp(labels), printer, config);
+            if (isWarmUpEnabled()) {
+                request.setWarmUpLabels(1);
+            }
+            printerBatches.put(printer, request.split(batchSize));
+        });
+        return new PreparedPrint(min, max, rows, printerBatches);
     }
 
     /**
      * The behaviour of the print button.
-     * This reads some values from the application's config, creates a
-     * {@link PrintRequest} and posts it using {@link PMBClient}.
-     * In the event of an error (missing/invalid config, failed post request),
-     * an error message will be shown to the user.
-     * If the post succeeds, a success message will be shown.
+     * This uses the print {@link #startPreparing prepared} in the background for the current settings,
+     * if there is one; otherwise it {@link #createPrint creates} the print now.
+     * It starts a {@link PrintWorker} to post the requests in batches through the {@link PrintScheduler}.
+     * If there is nothing to print, an error message will be shown to the user.
+     * The outcome of the post is reported by {@link #printFinished} when the worker is done.
      */
     private void performPrint() {
         printButton.setEnabled(false);
-        String location = config.getProperty("pmb_url", "").trim();
-        String proxy = config.getProperty("proxy");
-        String templateString = config.getProperty("template_id", "").trim();
-        if (location.isEmpty() || templateString.isEmpty()) {
-            showError("Missing config for PrintMyBarcode location.");
-            return;
+        PreparedPrint print = preparedPrint;
+        if (print==null) {
+            print = createPrint(this::showError);
+            if (print==null) {
+                // e.g. every row in the range was left out; the user may change the options and try again
+                printButton.setEnabled(canPrint());
+                return;
+            }
+        } else if (prepareWorker!=null) {
+            // Any batches not prepared yet are serialized as they are sent
+            prepareWorker.cancel(false);
+            prepareWorker = null;
         }
 
-        int templateId;
-        try {
-            templateId = Integer.parseInt(templateString);
-        } catch (NumberFormatException e) {
-            showError("Invalid template id: "+templateString);
-            return;
+        PrintScheduler scheduler = getPrintScheduler();
+        preparedPrint = null;
+        printStartRow = print.startRow;
+        printEndRow = print.endRow;
+        printRows = print.rows;
+        printWorker = new PrintWorker(scheduler, print.printerBatches);
+        printWorker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressBar.setValue((Integer) e.getNewValue());
+            } else if ("state".equals(e.getPropertyName()) && e.getNewValue()==SwingWorker.StateValue.DONE) {
+                printFinished((PrintWorker) e.getSource());
+            }
+        });
+        setPrinting(true);
+        fanOutCombo.setEnabled(false);
+        printWorker.execute();
+    }
+
+    /**
+     * Gets the client used to send print requests.
+     * The client is created the first time it is needed, and then reused, so that its
+     * connections to PrintMyBarcode can be kept alive between prints.
+     * @return the client
+     */
+    private PMBClient getPMBClient() {
+        if (pmbClient==null) {
+            pmbClient = new PMBClient(config);
+            pmbClient.setMetrics(printMetrics);
+            pmbClient.setHistory(printHistory);
         }
+        return pmbClient;
+    }
 
-        List<LabelData> values = getValuesToPrint();
-        if (values.isEmpty()) {
-            showError("Nothing to print.");
-            return;
+    /**
+     * Gets the scheduler through which print requests are sent, so that prints and queued retries for the
+     * same printer take turns, within the printer's rate limit.
+     * @return the scheduler
+     */
+    private PrintScheduler getPrintScheduler() {
+        if (printScheduler==null) {
+            printScheduler = new PrintScheduler(getPMBClient(), config);
         }
+        return printScheduler;
+    }
 
-        PrintRequest request = new PrintRequest(values, (String) printerCombo.getSelectedItem(), templateId, config);
+    /**
+     * Shows or hides the progress controls for a print in progress.
+     * While printing, the table cannot be cleared, and another print cannot be started.
+     * @param printing whether a print is in progress
+     */
+    private void setPrinting(boolean printing) {
+        progressBar.setValue(0);
+        progressBar.setVisible(printing);
+        cancelButton.setEnabled(printing);
+        cancelButton.setVisible(printing);
+        printButton.setVisible(!printing);
+        clearButton.setEnabled(!printing);
+        uniqueOnlyBox.setEnabled(!printing);
+        skipPrintedBox.setEnabled(!printing);
+        skipInvalidBox.setEnabled(!printing && !config.isBlockInvalid());
+    }
 
-        PMBClient pmb = new PMBClient(location, proxy);
+    /**
+     * The behaviour of the cancel button.
+     * Asks the current print to stop after the batch being sent.
+     */
+    private void performCancel() {
+        if (printWorker!=null) {
+            printWorker.requestStop();
+            cancelButton.setEnabled(false);
+        }
+    }
 
+    /**
+     * Called when a print worker has finished.
+     * Shows the user a message indicating whether the print succeeded.
+     * @param worker the worker that has finished
+     */
+    private void printFinished(PrintWorker worker) {
+        printWorker = null;
+        setPrinting(false);
+        fanOutCombo.setEnabled(true);
+        List<PrintRequest> batches = new ArrayList<>();
+        for (String printer : worker.getPrinters()) {
+            batches.addAll(worker.getBatches(printer));
+        }
+        markPrinted(batches);
+        Map<String, BatchPrintException> failures;
         try {
-            pmb.print(request);
+            failures = worker.get();
+        } catch (ExecutionException ee) {
+            Throwable e = ee.getCause();
+            e.printStackTrace();
+            showError("There was an error when trying to print: "+e);
+            return;
         } catch (Exception e) {
             e.printStackTrace();
             showError("There was an error when trying to print: "+e);
             return;
         }
-        JOptionPane.showMessageDialog(this, "Request sent.");
+        if (failures.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Request sent.");
+        } else if (worker.getPrinters().size()==1) {
+            Map.Entry<String, BatchPrintException> failure = failures.entrySet().iterator().next();
+            failure.getValue().printStackTrace();
+            printFailed(worker, failure.getKey(), failure.getValue());
+        } else {
+            fanOutFailed(worker, failures);
+        }
+    }
+
+    /**
+     * Reports the outcome of a print to several printers, where at least one printer failed.
+     * The print range is not adjusted, since the printers may have stopped at different points.
+     * @param worker the worker that sent the labels
+     * @param failures a map from printer name to the exception describing why that printer failed
+     */
+    private void fanOutFailed(PrintWorker worker, Map<String, BatchPrintException> failures) {
+        List<PrintRequest> unsent = new ArrayList<>();
+        StringBuilder sb = new StringBuilder("Printing did not complete.");
+        for (String printer : worker.getPrinters()) {
+            sb.append(System.lineSeparator()).append(printer).append(": ");
+            BatchPrintException e = failures.get(printer);
+            if (e==null) {
+                sb.append("all ").append(worker.getNumLabels(printer)).append(" labels sent.");
+                continue;
+            }
+            e.printStackTrace();
+            sb.append(e.getLabelsSent()).append(" of ").append(worker.getNumLabels(printer)).append(" labels sent; ");
+            if (e.getCause() instanceof InterruptedIOException) {
+                sb.append("cancelled.");
+            } else {
+                sb.append(e.getCause());
+                if (PrintQueue.isRetryable(e.getCause())) {
+                    unsent.addAll(worker.getUnsentBatches(printer, e));
+                }
+            }
+        }
+        offerToQueue(sb.toString(), unsent);
+    }
+
+    /**
+     * Shows an error message, and (if possible) offers to queue the requests that were not sent
+     * so that they are retried in the background.
+     * @param message the error message to show
+     * @param unsent the requests that were not sent, but might be sent successfully later
+     * @return true if the requests were queued, otherwise false
+     */
+    private boolean offerToQueue(String message, List<PrintRequest> unsent) {
+        if (printQueue==null || unsent.isEmpty()) {
+            showError(message);
+            return false;
+        }
+        int numLabels = unsent.stream().mapToInt(PrintRequest::size).sum();
+        int option = JOptionPane.showConfirmDialog(this,
+                String.format("%s%n%nQueue the %s unsent labels to be retried automatically?", message, numLabels),
+                "Error", JOptionPane.YES_NO_OPTION, JOptionPane.ERROR_MESSAGE);
+        if (option!=JOptionPane.YES_OPTION) {
+            return false;
+        }
+        try {
+            printQueue.enqueue(unsent);
+        } catch (IOException e) {
+            e.printStackTrace();
+            showError("The labels could not be queued: "+e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports a failed batch to the user.
+     * The user is offered the chance to queue the unsent batches to be retried in the background.
+     * Otherwise, if some batches were sent before the failure, the start of the print range is moved to the
+     * first row that was not sent, so that printing again resumes from there.
+     * @param worker the worker that sent the batches
+     * @param printer the printer the batches were sent to
+     * @param e the exception describing the failure
+     */
+    private void printFailed(PrintWorker worker, String printer, BatchPrintException e) {
+        int rowsSent = e.getLabelsSent();
+        if (rowsSent > 0 && isWarmUpEnabled()) {
+            --rowsSent; // the warm-up label is not a row from the table
+        }
+        boolean cancelled = (e.getCause() instanceof InterruptedIOException);
+        if (cancelled) {
+            if (rowsSent <= 0) {
+                JOptionPane.showMessageDialog(this, "Printing was cancelled.");
+                return;
+            }
+            int resumeRow = getResumeRow(rowsSent);
+            firstIndexField.setValue(resumeRow);
+            JOptionPane.showMessageDialog(this, String.format("Printing was cancelled.%n"
+                    + "The labels before row %s were sent.%n"
+                    + "The print range has been updated to resume from row %s.", resumeRow, resumeRow));
+            return;
+        }
+        List<PrintRequest> unsent = worker.getUnsentBatches(printer, e);
+        String message;
+        if (rowsSent <= 0) {
+            message = "There was an error when trying to print: "+e.getCause();
+        } else {
+            message = String.format("Batch %s of %s failed: %s%nThe labels before row %s were sent.",
+                    e.getBatchIndex()+1, worker.getNumBatches(printer), e.getCause(), getResumeRow(rowsSent));
+        }
+        if (!PrintQueue.isRetryable(e.getCause())) {
+            unsent = Collections.emptyList();
+        }
+        if (offerToQueue(message, unsent) || rowsSent <= 0) {
+            return;
+        }
+        int resumeRow = getResumeRow(rowsSent);
+        firstIndexField.setValue(resumeRow);
+        JOptionPane.showMessageDialog(this, "The print range has been updated to resume from row "+resumeRow+".");
     }
 
     /**
@@ -377,4 +1276,23 @@ public class AppFrame extends JFrame {
         JOptionPane.showMessageDialog(this, message, "Error",
                 JOptionPane.ERROR_MESSAGE);
     }
+
+    /**
+     * The print requests for a range of rows, created ahead of sending them.
+     */
+    private static class PreparedPrint {
+        /** The (1-based) first and last rows of the print range */
+        final int startRow, endRow;
+        /** The rows in the range that are printed, or null if they all are */
+        final int[] rows;
+        /** The batches to send to each printer */
+        final Map<String, List<PrintRequest>> printerBatches;
+
+        PreparedPrint(int startRow, int endRow, int[] rows, Map<String, List<PrintRequest>> printerBatches) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.rows = rows;
+            this.printerBatches = printerBatches;
+        }
+    }
 }
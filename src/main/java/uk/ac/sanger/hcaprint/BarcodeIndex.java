@@ -0,0 +1,198 @@
+package uk.ac.sanger.hcaprint;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An index of the barcodes (names) of the rows in a {@link LabelStore}, for finding duplicates.
+ * <p>The index is an open-addressing hash table of row numbers, probed linearly, holding the first row
+ * with each distinct barcode. The hash code of each row is kept alongside it, so that most probes do not need
+ * to look at the store at all; barcodes are hashed and compared in the store's buffer, without creating strings.
+ * <p>The index is built incrementally: after rows are added to the store, {@link #update} indexes the new rows.
+ * Rows without a barcode are not indexed, and are never duplicates.
+ * <p>An index is not thread-safe, and should be used on the same thread that adds rows to the store.
+ * @author dr6
+ */
+public class BarcodeIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final LabelStore store;
+    /** The first row with each barcode, plus one; or zero for an empty slot */
+    private int[] slots = new int[INITIAL_CAPACITY];
+    /** The hash code of the barcode of the row in each slot */
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int numKeys;
+    private int numIndexed;
+    private final BitSet duplicates = new BitSet();
+    private int numDuplicates;
+
+    /**
+     * Constructs an index for the given store, indexing the rows already in it.
+     * @param store the store containing the rows to index
+     */
+    public BarcodeIndex(LabelStore store) {
+        this.store = store;
+        update();
+    }
+
+    /**
+     * Indexes any rows added to the store since the index was last updated.
+     */
+    public void update() {
+        final int size = store.size();
+        while (numIndexed < size) {
+            add(numIndexed);
+            ++numIndexed;
+        }
+    }
+
+    /**
+     * Adds a row to the index, marking it as a duplicate if an earlier row has the same barcode.
+     * @param row the index of the row in the store
+     */
+    private void add(int row) {
+        if (!store.hasName(row)) {
+            return;
+        }
+        int hash = store.nameHashCode(row);
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (slots[slot]!=0) {
+            if (hashes[slot]==hash && store.namesEqual(slots[slot]-1, row)) {
+                duplicates.set(row);
+                ++numDuplicates;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+        hashes[slot] = hash;
+        if (++numKeys * 4 > slots.length * 3) {
+            resize();
+        }
+    }
+
+    /**
+     * Doubles the size of the hash table, moving every entry into its new slot.
+     * Rows are not compared with each other, since each entry already has a distinct barcode.
+     */
+    private void resize() {
+        int[] oldSlots = slots, oldHashes = hashes;
+        slots = new int[oldSlots.length * 2];
+        hashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; ++i) {
+            if (oldSlots[i]!=0) {
+                int slot = spread(oldHashes[i]) & mask;
+                while (slots[slot]!=0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    /**
+     * Mixes the bits of a string hash code, so that similar barcodes do not cluster in the table.
+     */
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Is the given row a duplicate: does an earlier row have the same barcode?
+     * @param row the index of a row in the store
+     * @return true if the row's barcode appears on an earlier row; otherwise false
+     */
+    public boolean isDuplicate(int row) {
+        return duplicates.get(row);
+    }
+
+    /**
+     * Gets the number of rows that are duplicates of earlier rows.
+     */
+    public int getDuplicateCount() {
+        return this.numDuplicates;
+    }
+
+    /**
+     * Gets the first row with the same barcode as the given row.
+     * @param row the index of an indexed row in the store
+     * @return the index of the first row with the same barcode; or the given row, if it is not a duplicate
+     */
+    public int getFirstRow(int row) {
+        if (!duplicates.get(row)) {
+            return row;
+        }
+        int hash = store.nameHashCode(row);
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (slots[slot]!=0) {
+            if (hashes[slot]==hash && store.namesEqual(slots[slot]-1, row)) {
+                return slots[slot]-1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return row; // not reachable for an indexed row
+    }
+
+    /**
+     * Finds the first row with the given barcode.
+     * @param barcode a barcode (may be null)
+     * @return the index of the first indexed row with the barcode, or -1 if there is none
+     */
+    public int findFirstRow(String barcode) {
+        if (barcode==null) {
+            return -1;
+        }
+        int hash = barcode.hashCode();
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (slots[slot]!=0) {
+            if (hashes[slot]==hash && store.nameEquals(slots[slot]-1, barcode)) {
+                return slots[slot]-1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the first duplicate row at or after the given row.
+     * @param fromRow the row to start looking from
+     * @return the index of the next duplicate row, or -1 if there is none
+     */
+    public int nextDuplicate(int fromRow) {
+        return duplicates.nextSetBit(fromRow);
+    }
+
+    /**
+     * Gets the rows in the given range, leaving out any row whose barcode already appeared earlier in the range.
+     * A row whose barcode also appears before the range is included the first time it appears in the range.
+     * @param fromRow the first row of the range (inclusive)
+     * @param toRow the end of the range (exclusive)
+     * @return the indexes of the rows with unique barcodes within the range, in order
+     */
+    public int[] uniqueRows(int fromRow, int toRow) {
+        int[] rows = new int[toRow - fromRow];
+        int count = 0;
+        BitSet seenBefore = null;
+        for (int row = fromRow; row < toRow; ++row) {
+            int first = getFirstRow(row);
+            if (first==row) {
+                rows[count++] = row;
+            } else if (first < fromRow) {
+                if (seenBefore==null) {
+                    seenBefore = new BitSet();
+                }
+                if (!seenBefore.get(first)) {
+                    seenBefore.set(first);
+                    rows[count++] = row;
+                }
+            }
+        }
+        return (count==rows.length ? rows : Arrays.copyOf(rows, count));
+    }
+}
@@ -0,0 +1,39 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.IOException;
+
+/**
+ * An exception indicating that one batch of a batched print failed.
+ * The batches before the failed one were sent successfully; the failed batch and those after it were not.
+ * @author dr6
+ */
+public class BatchPrintException extends IOException {
+    private final int batchIndex;
+    private final int labelsSent;
+
+    /**
+     * Constructs an exception for a failure in the specified batch.
+     * @param batchIndex the index of the batch that failed
+     * @param labelsSent the number of labels that were successfully sent before the failure
+     * @param cause the problem that caused the batch to fail
+     */
+    public BatchPrintException(int batchIndex, int labelsSent, IOException cause) {
+        super(cause.getMessage(), cause);
+        this.batchIndex = batchIndex;
+        this.labelsSent = labelsSent;
+    }
+
+    /**
+     * Gets the index (starting from zero) of the batch that failed.
+     */
+    public int getBatchIndex() {
+        return this.batchIndex;
+    }
+
+    /**
+     * Gets the number of labels that were successfully sent before the failure.
+     */
+    public int getLabelsSent() {
+        return this.labelsSent;
+    }
+}
@@ -0,0 +1,102 @@
+package uk.ac.sanger.hcaprint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes text as a Code 128 barcode, for {@link LabelRenderer previews} of labels.
+ * Strings of an even number of digits (at least four) are encoded in code set C, which packs two digits
+ * into each symbol; anything else is encoded in code set B, which covers printable ASCII.
+ * @author dr6
+ */
+public class Code128 {
+    /**
+     * The widths of the alternating bars and spaces of each symbol, in modules, indexed by symbol value.
+     * Every symbol is 11 modules wide, except the stop symbol, which is 13.
+     */
+    private static final String[] PATTERNS = {
+            "212222", "222122", "222221", "121223", "121322", "131222", "122213", "122312", "132212", "221213",
+            "221312", "231212", "112232", "122132", "122231", "113222", "123122", "123221", "223211", "221132",
+            "221231", "213212", "223112", "312131", "311222", "321122", "321221", "312212", "322112", "322211",
+            "212123", "212321", "232121", "111323", "131123", "131321", "112313", "132113", "132311", "211313",
+            "231113", "231311", "112133", "112331", "132131", "113123", "113321", "133121", "313121", "211331",
+            "231131", "213113", "213311", "213131", "311123", "311321", "331121", "312113", "312311", "332111",
+            "314111", "221411", "431111", "111224", "111422", "121124", "121421", "141122", "141221", "112214",
+            "112412", "122114", "122411", "142112", "142211", "241211", "221114", "413111", "241112", "134111",
+            "111242", "121142", "121241", "114212", "124112", "124211", "411212", "421112", "421211", "212141",
+            "214121", "412121", "111143", "111341", "131141", "114113", "114311", "411113", "411311", "113141",
+            "114131", "311141", "411131", "211412", "211214", "211232", "2331112",
+    };
+    private static final int START_B = 104;
+    private static final int START_C = 105;
+    private static final int STOP = 106;
+
+    private Code128() {}
+
+    /**
+     * Can the given text be encoded?
+     * @param text the text to check
+     * @return true if the text is not empty, and only contains printable ASCII characters
+     */
+    public static boolean canEncode(String text) {
+        if (text==null || text.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); ++i) {
+            char ch = text.charAt(i);
+            if (ch < 32 || ch > 126) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the given text as the modules of a barcode, including the start and stop symbols and the
+     * check symbol, but not the quiet zones either side.
+     * @param text the text to encode
+     * @return an array with an element for each module: true for a bar, false for a space
+     * @exception IllegalArgumentException the text {@link #canEncode cannot be encoded}
+     */
+    public static boolean[] encode(String text) {
+        if (!canEncode(text)) {
+            throw new IllegalArgumentException("Cannot encode in Code 128: "+text);
+        }
+        List<Integer> symbols = new ArrayList<>(text.length() + 3);
+        if (text.length() >= 4 && text.length() % 2==0 && text.chars().allMatch(ch -> ch >= '0' && ch <= '9')) {
+            symbols.add(START_C);
+            for (int i = 0; i < text.length(); i += 2) {
+                symbols.add(Integer.parseInt(text.substring(i, i+2)));
+            }
+        } else {
+            symbols.add(START_B);
+            for (int i = 0; i < text.length(); ++i) {
+                symbols.add(text.charAt(i) - 32);
+            }
+        }
+        int checksum = symbols.get(0);
+        for (int i = 1; i < symbols.size(); ++i) {
+            checksum += i * symbols.get(i);
+        }
+        symbols.add(checksum % 103);
+        symbols.add(STOP);
+
+        int numModules = 0;
+        for (int symbol : symbols) {
+            numModules += (symbol==STOP ? 13 : 11);
+        }
+        boolean[] modules = new boolean[numModules];
+        int pos = 0;
+        for (int symbol : symbols) {
+            String pattern = PATTERNS[symbol];
+            for (int i = 0; i < pattern.length(); ++i) {
+                int width = pattern.charAt(i) - '0';
+                boolean bar = (i % 2==0);
+                for (int j = 0; j < width; ++j) {
+                    modules[pos++] = bar;
+                }
+            }
+        }
+        return modules;
+    }
+}
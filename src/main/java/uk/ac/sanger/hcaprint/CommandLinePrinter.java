@@ -0,0 +1,217 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Prints labels read from a file (or standard input) without showing any user interface.
+ * The input is tab-separated text in the same format as a paste into the application:
+ * one label per line, interpreted by {@link LabelParser}.
+ * Labels are read and sent in batches as the input is read, so the whole input is never held in memory.
+ * If the config sets {@code block_invalid}, labels that break its validation rules are reported and left out,
+ * as they are in the application.
+ * <p>This mode is selected by giving the application an {@code input} argument, e.g.
+ * {@code input=labels.tsv} (or {@code input=-} for standard input). Other arguments:
+ * <ul>
+ *     <li>{@code printer=<name>} the printer to use (defaults to the first configured printer)</li>
+ *     <li>{@code skip=<n>} skip the first {@code n} labels of the input (e.g. to resume a failed run)</li>
+ *     <li>{@code metrics_file=<path>} log the timing of each print request to the given CSV file</li>
+ *     <li>{@code history_file=<path>} record the barcodes printed in the given print history file</li>
+ * </ul>
+ * @author dr6
+ */
+public class CommandLinePrinter {
+    /** Exit status when all the labels were sent. */
+    public static final int EXIT_OK = 0;
+    /** Exit status when the config or arguments were invalid, or the input could not be read. */
+    public static final int EXIT_BAD_INPUT = 1;
+    /** Exit status when sending to PrintMyBarcode failed. */
+    public static final int EXIT_PRINT_FAILED = 2;
+
+    /** The batch size used if the config does not give one. */
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final PrintConfig config;
+    private final PrintStream log;
+
+    /**
+     * Constructs a printer using the given config.
+     * @param config the application's config, including the command line arguments
+     * @param log stream where progress and errors should be reported
+     */
+    public CommandLinePrinter(PrintConfig config, PrintStream log) {
+        this.config = config;
+        this.log = log;
+    }
+
+    /**
+     * Reads the input specified in the config and sends it to PrintMyBarcode.
+     * @return the exit status for the application
+     */
+    public int run() {
+        String input = config.getProperty("input", "");
+        String printer = config.getProperty("printer", "");
+        if (printer.isEmpty()) {
+            printer = config.getPrinters().get(0);
+        }
+        String skipString = config.getProperty("skip", "0");
+        int skip;
+        try {
+            skip = Integer.parseInt(skipString);
+        } catch (NumberFormatException e) {
+            log.println("Invalid skip: "+e.getMessage());
+            return EXIT_BAD_INPUT;
+        }
+        if (skip < 0) {
+            log.println("Invalid skip: "+skipString);
+            return EXIT_BAD_INPUT;
+        }
+        int batchSize = (config.getProperty("batch_size", "").isEmpty() ? DEFAULT_BATCH_SIZE : config.getBatchSize());
+        if (batchSize <= 0) {
+            batchSize = Integer.MAX_VALUE;
+        }
+
+        PMBClient pmb = new PMBClient(config);
+        PrintMetrics metrics = startMetrics();
+        pmb.setMetrics(metrics);
+        Path historyFile = config.getFile("history_file", null);
+        if (historyFile!=null) {
+            pmb.setHistory(new PrintHistory(historyFile));
+        }
+        try (LabelParser in = new LabelParser(openInput(input))) {
+            return print(in, pmb, printer, batchSize, skip);
+        } catch (IOException e) {
+            log.println("Could not read input: "+e.getMessage());
+            return EXIT_BAD_INPUT;
+        } finally {
+            try {
+                metrics.close();
+            } catch (IOException e) {
+                log.println("Could not write print metrics: "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the metrics recording how the print requests perform.
+     * If a "metrics_file" is given in the config, each request is logged to it as a line of CSV.
+     * @return the metrics for the print requests
+     */
+    private PrintMetrics startMetrics() {
+        PrintMetrics metrics = new PrintMetrics();
+        Path metricsFile = config.getFile("metrics_file", null);
+        if (metricsFile!=null) {
+            Duration interval = config.getMetricsFlushInterval();
+            try {
+                metrics.startLog(metricsFile, interval!=null ? interval : Duration.ofMinutes(1));
+            } catch (IOException e) {
+                log.println("Could not log print metrics to "+metricsFile+": "+e.getMessage());
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Reads labels from the given parser, and sends them to the printer in batches.
+     * @param in the source of label data
+     * @param pmb the client to send the print requests
+     * @param printer the name of the printer
+     * @param batchSize the maximum number of labels in each print request
+     * @param skip the number of labels at the start of the input to skip
+     * @return the exit status for the application
+     * @exception IOException the input could not be read
+     */
+    private int print(LabelParser in, PMBClient pmb, String printer, int batchSize, int skip) throws IOException {
+        boolean warmUp = config.isWarmUp();
+        LabelValidator validator = (config.isBlockInvalid() && config.getValidator().hasRules()
+                ? config.getValidator() : null);
+        int labelsBlocked = 0;
+        List<LabelData> batch = new ArrayList<>(Math.min(batchSize, 1024));
+        int warmUpLabels = 0;
+        int labelsRead = 0;
+        int labelsSent = skip;
+        LabelData data;
+        while ((data = in.next()) != null) {
+            if (++labelsRead <= skip) {
+                continue;
+            }
+            if (validator!=null) {
+                String problem = validator.check(data);
+                if (problem!=null) {
+                    log.printf("Label %s is invalid and will not be printed: %s%n", labelsRead, problem);
+                    ++labelsBlocked;
+                    continue;
+                }
+            }
+            if (warmUp) {
+                batch.add(LabelData.warmUp());
+                warmUpLabels = 1;
+                warmUp = false;
+            }
+            batch.add(data);
+            if (batch.size() >= batchSize) {
+                if (!send(pmb, batch, warmUpLabels, printer, labelsSent, labelsRead)) {
+                    return EXIT_PRINT_FAILED;
+                }
+                labelsSent = labelsRead;
+                batch.clear();
+                warmUpLabels = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            if (!send(pmb, batch, warmUpLabels, printer, labelsSent, labelsRead)) {
+                return EXIT_PRINT_FAILED;
+            }
+            labelsSent = labelsRead;
+        }
+        // invalid labels after the last batch sent are still counted as read
+        labelsSent = labelsRead;
+        log.printf("Sent %s labels to %s.%n", labelsSent - skip - labelsBlocked, printer);
+        if (labelsBlocked > 0) {
+            log.printf("%s invalid labels were not printed.%n", labelsBlocked);
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Sends one batch of labels, reporting the outcome to the log.
+     * @param pmb the client to send the print request
+     * @param batch the labels to send
+     * @param warmUpLabels the number of warm-up labels at the start of the batch
+     * @param printer the name of the printer
+     * @param labelsSent the number of labels from the input already sent (or skipped) before this batch
+     * @param labelsRead the number of labels from the input read so far, including this batch
+     * @return true if the batch was sent; false if it failed
+     */
+    private boolean send(PMBClient pmb, List<LabelData> batch, int warmUpLabels, String printer,
+                         int labelsSent, int labelsRead) {
+        PrintRequest request = new PrintRequest(batch, printer, config);
+        request.setWarmUpLabels(warmUpLabels);
+        try {
+            pmb.print(request);
+        } catch (IOException e) {
+            log.println("Printing failed: "+e.getMessage());
+            log.printf("The first %s labels were sent. To resume, run again with skip=%s%n", labelsSent, labelsSent);
+            return false;
+        }
+        log.printf("Sent labels %s to %s.%n", labelsSent + 1, labelsRead);
+        return true;
+    }
+
+    /**
+     * Opens a reader for the given input: a file path, or {@code "-"} for standard input.
+     * Input is read as UTF-8.
+     * @param input the path of a file, or {@code "-"}
+     * @return a reader for the input
+     * @exception IOException the file could not be opened
+     */
+    private static Reader openInput(String input) throws IOException {
+        if (input.equals("-")) {
+            return new InputStreamReader(System.in, StandardCharsets.UTF_8);
+        }
+        return new InputStreamReader(Files.newInputStream(Paths.get(input)), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,28 @@
+package uk.ac.sanger.hcaprint;
+
+import java.util.List;
+
+/**
+ * An exception indicating that the application's config is invalid.
+ * The exception lists every problem found, so they can all be fixed at once.
+ * @author dr6
+ */
+public class ConfigException extends Exception {
+    private final List<String> problems;
+
+    /**
+     * Constructs an exception describing the given problems.
+     * @param problems descriptions of the problems with the config
+     */
+    public ConfigException(List<String> problems) {
+        super(String.join(System.lineSeparator(), problems));
+        this.problems = List.copyOf(problems);
+    }
+
+    /**
+     * Gets the descriptions of the problems with the config.
+     */
+    public List<String> getProblems() {
+        return this.problems;
+    }
+}
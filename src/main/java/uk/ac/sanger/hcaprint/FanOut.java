@@ -0,0 +1,66 @@
+package uk.ac.sanger.hcaprint;
+
+import java.util.*;
+
+/**
+ * The ways that a range of labels can be distributed between printers.
+ * @author dr6
+ */
+public enum FanOut {
+    /** All the labels are sent to the selected printer. */
+    SINGLE("Selected printer"),
+    /** The labels are split into consecutive parts of (nearly) equal size, one for each printer. */
+    SPLIT("Split across all printers"),
+    /** All the labels are sent to every printer. */
+    COPY("Copy to all printers"),
+    ;
+
+    private final String description;
+
+    FanOut(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Distributes the given labels between printers.
+     * The returned map is ordered by the order of the given printers, and only includes
+     * printers that have labels to print.
+     * @param labels the labels to print
+     * @param selectedPrinter the printer selected by the user
+     * @param printers all the available printers
+     * @return a map from printer name to the labels to send to that printer
+     */
+    public Map<String, List<LabelData>> distribute(List<LabelData> labels, String selectedPrinter,
+                                                   List<String> printers) {
+        if (labels.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (this==SINGLE || printers.size() <= 1) {
+            String printer = (this==SINGLE || printers.isEmpty() ? selectedPrinter : printers.get(0));
+            return Collections.singletonMap(printer, labels);
+        }
+        Map<String, List<LabelData>> map = new LinkedHashMap<>(printers.size());
+        if (this==COPY) {
+            for (String printer : printers) {
+                map.put(printer, labels);
+            }
+            return map;
+        }
+        final int numLabels = labels.size();
+        final int numPrinters = printers.size();
+        int start = 0;
+        for (int i = 0; i < numPrinters && start < numLabels; ++i) {
+            int end = (int) ((long) numLabels * (i+1) / numPrinters);
+            if (end > start) {
+                map.put(printers.get(i), labels.subList(start, end));
+            }
+            start = end;
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return this.description;
+    }
+}
@@ -1,13 +1,18 @@
 package uk.ac.sanger.hcaprint;
 
 import javax.swing.table.AbstractTableModel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.Function;
 
 /**
  * A generic table model that uses specified functions to extract values.
- * The items are specified via {@link #setItems}.
+ * The items are specified via {@link #setItems}, and more may be appended via {@link #addItems}.
+ * The model holds whatever list it is given, so a compact list implementation
+ * (such as {@link LabelStore}) can be used to hold very large numbers of rows.
  * @param <E> the class representing a row in this table
  * @author dr6
  */
@@ -39,6 +44,25 @@ public class FunctionalTableModel<E> extends AbstractTableModel {
         fireTableDataChanged();
     }
 
+    /**
+     * Appends items to the end of this table.
+     * Listeners are told only about the inserted rows, so the rest of the table need not be laid out again.
+     * The items are added to the list last given to {@link #setItems}, which must be modifiable.
+     * If no list has been given, a new list is created.
+     * @param newItems the items to add to the table
+     */
+    public void addItems(Collection<? extends E> newItems) {
+        if (newItems.isEmpty()) {
+            return;
+        }
+        if (this.items==Collections.<E>emptyList()) {
+            this.items = new ArrayList<>(newItems.size());
+        }
+        int start = this.items.size();
+        this.items.addAll(newItems);
+        fireTableRowsInserted(start, this.items.size()-1);
+    }
+
     /**
      * Sets the headings for the table.
      * The number of headings will usually be the same as the number of columns,
@@ -78,6 +102,40 @@ public class FunctionalTableModel<E> extends AbstractTableModel {
         return this.items.get(index);
     }
 
+    /**
+     * Gets a read-only view of a range of rows.
+     * The view is backed by the items in this table, so no rows are copied.
+     * @param fromIndex the index of the first row (inclusive)
+     * @param toIndex the index after the last row (exclusive)
+     * @return an unmodifiable list of the rows in the given range
+     * @exception IndexOutOfBoundsException if the range is not valid for the rows in this table
+     */
+    public List<E> getRows(int fromIndex, int toIndex) {
+        return Collections.unmodifiableList(this.items.subList(fromIndex, toIndex));
+    }
+
+    /**
+     * Gets a read-only view of the rows at the given indexes.
+     * The view is backed by the items in this table, so no rows are copied.
+     * The array is not copied either, and should not be changed while the view is in use.
+     * @param indexes the indexes of the rows, in the order they should appear in the view
+     * @return an unmodifiable list of the indicated rows
+     */
+    public List<E> getRows(int[] indexes) {
+        final List<E> items = this.items;
+        return new AbstractList<E>() {
+            @Override
+            public E get(int index) {
+                return items.get(indexes[index]);
+            }
+
+            @Override
+            public int size() {
+                return indexes.length;
+            }
+        };
+    }
+
     @Override
     public int getRowCount() {
         return items.size();
@@ -1,7 +1,6 @@
 package uk.ac.sanger.hcaprint;
 
 import java.time.LocalDate;
-import java.util.Arrays;
 
 /**
  * A class representing the information for one label.
@@ -10,6 +9,8 @@ import java.util.Arrays;
  * @author dr6
  */
 public class LabelData {
+    private static final String WARM_UP_NAME = "Print-tool";
+
     private String name;
     private String date;
 
@@ -77,37 +78,15 @@ public class LabelData {
      * The first is the name/barcode. The second is the date.
      * The values are trimmed. If there are not two values, null may be used in the place of one.
      * If we cannot make sense of the given line, null will be returned.
+     * To parse many lines at once, use {@link LabelParser}.
      * @param line the string containing the label information
      * @return a new instance of {@code LabelData}, or null if the the line could not be understood
      */
     public static LabelData fromLine(String line) {
-        String[] parts = line.split("\t");
-        if (parts.length==0) {
-            return null;
-        }
-        if (parts.length==1) {
-            String name = parts[0].trim();
-            if (name.isEmpty()) {
-                return null;
-            }
-            return new LabelData(name, null);
-        }
-        if (parts.length==2) {
-            return new LabelData(parts[0].trim(), parts[1].trim());
-        }
-        String[] nonEmptyParts = Arrays.stream(parts)
-                .map(String::trim)
-                .toArray(String[]::new);
-        if (nonEmptyParts.length==1) {
-            return new LabelData(nonEmptyParts[0], null);
-        }
-        if (nonEmptyParts.length==2) {
-            return new LabelData(nonEmptyParts[0], nonEmptyParts[1]);
-        }
-        return null;
+        return LabelParser.parseLine(line, 0, line.length());
     }
 
     public static LabelData warmUp() {
-        return new LabelData("Print-tool", LocalDate.now().toString());
+        return new LabelData(WARM_UP_NAME, LocalDate.now().toString());
     }
 }
@@ -0,0 +1,212 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.function.Consumer;
+
+/**
+ * A single-pass parser for tab-separated label data, such as text pasted from a spreadsheet.
+ * Text is scanned character by character, without regular expressions or splitting into intermediate
+ * arrays of strings; the only strings created are the field values of the labels.
+ * Lines may end with {@code \n}, {@code \r\n} or {@code \r}.
+ * Each line is interpreted in the same way as {@link LabelData#fromLine}, and lines that cannot be
+ * understood are skipped.
+ * <p>A parser can either be given the whole text at once using {@link #parse(CharSequence, Consumer)},
+ * or constructed around a {@code Reader} and asked for one label at a time using {@link #next}.
+ * @author dr6
+ */
+public class LabelParser implements Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private char[] buffer;
+    private CharBuffer view;
+    private int position, limit;
+    private boolean skipLineFeed;
+    private boolean endOfInput;
+
+    /**
+     * Constructs a parser reading from the given reader.
+     * @param reader the source of the text
+     */
+    public LabelParser(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[DEFAULT_BUFFER_SIZE];
+        this.view = CharBuffer.wrap(buffer);
+    }
+
+    /**
+     * Parses all the labels in the given text, passing each to the given consumer in order.
+     * @param text the text to parse
+     * @param consumer the receiver of the labels
+     * @return the number of labels parsed
+     */
+    public static int parse(CharSequence text, Consumer<? super LabelData> consumer) {
+        final int length = text.length();
+        int count = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            char ch = 0;
+            while (end < length && (ch = text.charAt(end))!='\n' && ch!='\r') {
+                ++end;
+            }
+            LabelData data = parseLine(text, start, end);
+            if (data!=null) {
+                consumer.accept(data);
+                ++count;
+            }
+            start = end + 1;
+            if (ch=='\r' && start < length && text.charAt(start)=='\n') {
+                ++start;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the next label from the reader.
+     * Lines that cannot be understood are skipped.
+     * @return the next label, or null if the end of the input has been reached
+     * @exception IOException the reader could not be read
+     */
+    public LabelData next() throws IOException {
+        while (true) {
+            int end = findLineEnd();
+            if (end < 0) {
+                return null;
+            }
+            int start = position;
+            position = (end < limit ? end + 1 : end);
+            if (end < limit && buffer[end]=='\r') {
+                skipLineFeed = true;
+            }
+            LabelData data = parseLine(view, start, end);
+            if (data!=null) {
+                return data;
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the next line in the buffer, reading more input as required.
+     * The end is the index of the line terminator, or {@code limit} if the input ends without one.
+     * @return the index of the end of the line, or -1 if there is no more input
+     * @exception IOException the reader could not be read
+     */
+    private int findLineEnd() throws IOException {
+        int scan = position;
+        while (true) {
+            if (skipLineFeed && position < limit) {
+                skipLineFeed = false;
+                if (buffer[position]=='\n') {
+                    ++position;
+                    ++scan;
+                }
+            }
+            while (scan < limit) {
+                char ch = buffer[scan];
+                if (ch=='\n' || ch=='\r') {
+                    return scan;
+                }
+                ++scan;
+            }
+            if (endOfInput) {
+                return (position < limit ? limit : -1);
+            }
+            scan -= position;
+            fill();
+        }
+    }
+
+    /**
+     * Moves any unparsed text to the start of the buffer (growing the buffer if it is full),
+     * and reads more text into the buffer.
+     * @exception IOException the reader could not be read
+     */
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        if (remaining==buffer.length) {
+            char[] newBuffer = new char[buffer.length * 2];
+            System.arraycopy(buffer, position, newBuffer, 0, remaining);
+            buffer = newBuffer;
+            view = CharBuffer.wrap(buffer);
+        } else if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+        int n = reader.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            endOfInput = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Interprets one line of text as a label, following the rules described in {@link LabelData#fromLine}.
+     * The line is divided into fields by tab characters, ignoring any empty fields at the end.
+     * One field gives a name; two fields give a name and a date; anything else cannot be understood.
+     * @param text the text containing the line
+     * @param start the index of the start of the line
+     * @param end the index of the end of the line (exclusive)
+     * @return the label described by the line, or null if the line could not be understood
+     */
+    static LabelData parseLine(CharSequence text, int start, int end) {
+        int firstTab = -1, secondTab = -1;
+        int lastContent = start; // the end of the last non-empty field
+        for (int i = start; i < end; ++i) {
+            if (text.charAt(i)=='\t') {
+                if (firstTab < 0) {
+                    firstTab = i;
+                } else if (secondTab < 0) {
+                    secondTab = i;
+                }
+            } else {
+                lastContent = i + 1;
+            }
+        }
+        if (firstTab < 0 || lastContent <= firstTab) {
+            // one field
+            String name = trimmed(text, start, (firstTab < 0 ? end : firstTab));
+            return (name.isEmpty() ? null : new LabelData(name, null));
+        }
+        if (secondTab < 0 || lastContent <= secondTab) {
+            // two fields
+            return new LabelData(trimmed(text, start, firstTab),
+                    trimmed(text, firstTab + 1, (secondTab < 0 ? end : secondTab)));
+        }
+        return null;
+    }
+
+    /**
+     * Gets the given range of text, with leading and trailing whitespace removed
+     * (in the same way as {@link String#trim}).
+     * @param text the text
+     * @param start the start of the range
+     * @param end the end of the range (exclusive)
+     * @return a string containing the trimmed range of text
+     */
+    private static String trimmed(CharSequence text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (end > start && text.charAt(end-1) <= ' ') {
+            --end;
+        }
+        if (text instanceof String) {
+            return ((String) text).substring(start, end);
+        }
+        if (text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+            CharBuffer cb = (CharBuffer) text;
+            return new String(cb.array(), cb.arrayOffset() + cb.position() + start, end - start);
+        }
+        return text.subSequence(start, end).toString();
+    }
+}
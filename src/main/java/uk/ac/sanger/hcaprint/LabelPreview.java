@@ -0,0 +1,157 @@
+package uk.ac.sanger.hcaprint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Panel showing a preview of the label in the selected row of the table.
+ * <p>Labels are drawn by a {@link LabelRenderer} on a background thread, so the user interface is never
+ * held up. The images are kept in a cache of limited size, from which the least recently shown images are
+ * dropped first. When a label is shown, the labels in the rows around it are drawn into the cache as well,
+ * so that moving through the table shows each label at once.
+ * If the label shown changes before a label has been drawn, the label is not drawn.
+ * @author dr6
+ */
+public class LabelPreview extends JPanel {
+    /** The size of the preview images, in pixels */
+    private static final int IMAGE_WIDTH = 240, IMAGE_HEIGHT = 120;
+    /** The most memory the cached images may use, in bytes */
+    private static final long CACHE_BYTES = 16L << 20;
+
+    private final LabelRenderer renderer;
+    private final ImageCache cache = new ImageCache(CACHE_BYTES);
+    private final ExecutorService executor;
+    /** Incremented each time the label shown changes, so that work for earlier labels can be abandoned */
+    private final AtomicInteger generation = new AtomicInteger();
+    private final JLabel imageLabel;
+    private final JLabel captionLabel;
+    private Object shownKey;
+
+    /**
+     * Constructs a preview of labels for the template and fields in the given config.
+     * @param config the config giving the label template and fields
+     */
+    public LabelPreview(PrintConfig config) {
+        super(new BorderLayout());
+        this.renderer = new LabelRenderer(config.getTemplateId(), config.getFieldNames().keySet(),
+                IMAGE_WIDTH, IMAGE_HEIGHT);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "label-preview");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        imageLabel = new JLabel();
+        imageLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        imageLabel.setVerticalAlignment(SwingConstants.TOP);
+        imageLabel.setPreferredSize(new Dimension(IMAGE_WIDTH + 10, IMAGE_HEIGHT + 10));
+        captionLabel = new JLabel("Template "+config.getTemplateId(), SwingConstants.CENTER);
+        add(captionLabel, BorderLayout.NORTH);
+        add(imageLabel, BorderLayout.CENTER);
+        setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+    }
+
+    /**
+     * Shows the preview of the given label, drawing it in the background if it is not already cached.
+     * The nearby labels are drawn into the cache afterwards, in the given order, unless the label shown
+     * changes first. This should be called on the event dispatch thread.
+     * @param label the label to show, or null to show nothing
+     * @param nearby labels that are likely to be shown next
+     */
+    public void showLabel(LabelData label, List<LabelData> nearby) {
+        if (label==null) {
+            generation.incrementAndGet();
+            shownKey = null;
+            imageLabel.setIcon(null);
+            return;
+        }
+        final Object key = renderer.getKey(label);
+        if (key.equals(shownKey)) {
+            return; // any work for this label is still wanted
+        }
+        final int gen = generation.incrementAndGet();
+        shownKey = key;
+        BufferedImage image = cache.get(key);
+        imageLabel.setIcon(image!=null ? new ImageIcon(image) : null);
+        executor.execute(() -> {
+            if (image==null) {
+                BufferedImage rendered = getImage(label, key, gen);
+                if (rendered==null) {
+                    return;
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (key.equals(shownKey)) {
+                        imageLabel.setIcon(new ImageIcon(rendered));
+                    }
+                });
+            }
+            for (LabelData other : nearby) {
+                if (other!=null && getImage(other, renderer.getKey(other), gen)==null) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the image of a label from the cache, or draws it and adds it to the cache.
+     * This is called on the background thread.
+     * @return the image, or null if the label shown has changed since the given generation
+     */
+    private BufferedImage getImage(LabelData label, Object key, int gen) {
+        if (generation.get()!=gen) {
+            return null;
+        }
+        BufferedImage image = cache.get(key);
+        if (image==null) {
+            image = renderer.render(label);
+            cache.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * A cache of images, limited by the memory the images use.
+     * When the limit is exceeded, the least recently used images are removed.
+     */
+    private static class ImageCache {
+        private final long maxBytes;
+        private final LinkedHashMap<Object, BufferedImage> images = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytes;
+
+        ImageCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized BufferedImage get(Object key) {
+            return images.get(key);
+        }
+
+        synchronized void put(Object key, BufferedImage image) {
+            BufferedImage old = images.put(key, image);
+            if (old!=null) {
+                bytes -= sizeOf(old);
+            }
+            bytes += sizeOf(image);
+            Iterator<BufferedImage> iter = images.values().iterator();
+            while (bytes > maxBytes && iter.hasNext()) {
+                BufferedImage eldest = iter.next();
+                if (eldest==image) {
+                    break;
+                }
+                bytes -= sizeOf(eldest);
+                iter.remove();
+            }
+        }
+
+        private static long sizeOf(BufferedImage image) {
+            return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+        }
+    }
+}
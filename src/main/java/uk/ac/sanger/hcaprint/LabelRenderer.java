@@ -0,0 +1,132 @@
+package uk.ac.sanger.hcaprint;
+
+import uk.ac.sanger.hcaprint.PrintRequest.Field;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Draws an approximate picture of a label, as it would be printed with the configured template and fields.
+ * The label shows the fields that the template is given: the name as text at the top, the barcode as a
+ * {@link Code128} barcode, and the date at the bottom. If the name is not given, the text of the barcode
+ * is shown beneath it instead.
+ * <p>A renderer draws into a new image each time, and does not use any Swing components, so it may be used
+ * from any thread.
+ * @author dr6
+ */
+public class LabelRenderer {
+    /** The space around the edge of the label, as a proportion of its height */
+    private static final double MARGIN = 0.06;
+    /** The number of blank modules required either side of a barcode */
+    private static final int QUIET_ZONE = 10;
+
+    private final int templateId;
+    private final Set<Field> fields;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructs a renderer for labels of the given template and size.
+     * @param templateId the label template id
+     * @param fields the fields supplied to the template
+     * @param width the width of the rendered images, in pixels
+     * @param height the height of the rendered images, in pixels
+     */
+    public LabelRenderer(int templateId, Set<Field> fields, int width, int height) {
+        this.templateId = templateId;
+        this.fields = fields;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Gets a key identifying the image that would be rendered for the given label.
+     * Labels with equal keys look the same.
+     * @param label the label
+     * @return a key for the rendered image of the label
+     */
+    public List<Object> getKey(LabelData label) {
+        return Arrays.asList(templateId, label.getName(), label.getDate());
+    }
+
+    /**
+     * Draws the given label.
+     * @param label the label to draw
+     * @return a new image of the label
+     */
+    public BufferedImage render(LabelData label) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.setColor(Color.LIGHT_GRAY);
+            g.drawRect(0, 0, width-1, height-1);
+            g.setColor(Color.BLACK);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+            final int margin = (int) Math.ceil(height * MARGIN);
+            final int textHeight = Math.max(8, height / 9);
+            Font font = new Font(Font.SANS_SERIF, Font.PLAIN, textHeight);
+            g.setFont(font);
+            FontMetrics metrics = g.getFontMetrics();
+            int top = margin;
+            int bottom = height - margin;
+
+            if (fields.contains(Field.NAME) && label.getName()!=null) {
+                drawCentred(g, label.getName(), top + metrics.getAscent());
+                top += metrics.getHeight() + margin;
+            }
+            if (fields.contains(Field.DATE) && label.getDate()!=null) {
+                drawCentred(g, label.getDate(), bottom - metrics.getDescent());
+                bottom -= metrics.getHeight() + margin;
+            }
+            if (fields.contains(Field.BARCODE) && label.getBarcode()!=null) {
+                String barcode = label.getBarcode();
+                if (!fields.contains(Field.NAME)) {
+                    bottom -= metrics.getHeight();
+                    drawCentred(g, barcode, bottom + metrics.getAscent());
+                }
+                if (Code128.canEncode(barcode)) {
+                    drawBarcode(g, Code128.encode(barcode), margin, top, width - 2 * margin, bottom - top);
+                } else {
+                    drawCentred(g, "(cannot encode)", (top + bottom + metrics.getAscent()) / 2);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private void drawCentred(Graphics2D g, String text, int baseline) {
+        int textWidth = g.getFontMetrics().stringWidth(text);
+        g.drawString(text, Math.max(0, (width - textWidth) / 2), baseline);
+    }
+
+    /**
+     * Draws the modules of a barcode as bars, centred in the given area, at a whole number of pixels per module
+     * if there is room.
+     */
+    private static void drawBarcode(Graphics2D g, boolean[] modules, int x, int y, int areaWidth, int areaHeight) {
+        if (areaHeight <= 0) {
+            return;
+        }
+        int totalModules = modules.length + 2 * QUIET_ZONE;
+        double moduleWidth = (double) areaWidth / totalModules;
+        if (moduleWidth >= 1) {
+            moduleWidth = Math.floor(moduleWidth);
+        }
+        double start = x + (areaWidth - moduleWidth * modules.length) / 2;
+        for (int i = 0; i < modules.length; ++i) {
+            if (modules[i]) {
+                int left = (int) Math.round(start + i * moduleWidth);
+                int right = (int) Math.round(start + (i+1) * moduleWidth);
+                g.fillRect(left, y, Math.max(1, right - left), areaHeight);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package uk.ac.sanger.hcaprint;
+
+import uk.ac.sanger.hcaprint.PrintRequest.Field;
+
+import javax.json.JsonException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes print requests as UTF-8 JSON for a particular label template and set of field names.
+ * <p>Everything that is the same for every request using the template and fields (the JSON keys, punctuation,
+ * and the template id) is encoded into bytes once, when the serializer is created. Writing a request
+ * then only has to encode the printer name and the field values of each label, straight into a byte buffer,
+ * without creating any intermediate JSON objects.
+ * <p>Serializers are immutable and thread-safe, and are cached by {@link #forTemplate},
+ * so requests with the same config share the same serializer.
+ * <p>The output is the same as that written by a {@code javax.json} generator for the equivalent
+ * {@link PrintRequest#getJsonValue JSON value}.
+ * @author dr6
+ */
+public class LabelSerializer {
+    private static final int BUFFER_SIZE = 8192;
+    /** The most bytes that a single char can take when encoded (as a {@code \}{@code u####} escape) */
+    private static final int MAX_BYTES_PER_CHAR = 6;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ConcurrentMap<Key, LabelSerializer> CACHE = new ConcurrentHashMap<>();
+
+    private final Field[] fields;
+    /** For each field, its key and the following colon, e.g. {@code "barcode":} */
+    private final byte[][] fieldKeys;
+    private final byte[] requestStart;
+    private final byte[] afterPrinter;
+    private final byte[] labelStart;
+    private final byte[] labelEnd;
+    private final byte[] requestEnd;
+
+    /**
+     * Gets a serializer for the given template and field names, creating it if necessary.
+     * @param templateId the label template id
+     * @param fieldNames the name to use in the JSON for each field to be included on the label
+     * @return a serializer for the given template and field names
+     */
+    public static LabelSerializer forTemplate(int templateId, Map<Field, String> fieldNames) {
+        Key key = new Key(templateId, fieldNames);
+        LabelSerializer serializer = CACHE.get(key);
+        if (serializer==null) {
+            serializer = CACHE.computeIfAbsent(key, k -> new LabelSerializer(k.templateId, k.fieldNames));
+        }
+        return serializer;
+    }
+
+    private LabelSerializer(int templateId, Map<Field, String> fieldNames) {
+        this.fields = fieldNames.keySet().toArray(new Field[0]);
+        this.fieldKeys = new byte[fields.length][];
+        for (int i = 0; i < fields.length; ++i) {
+            fieldKeys[i] = encode(quoted(fieldNames.get(fields[i]))+":");
+        }
+        this.requestStart = encode("{\"data\":{\"attributes\":{\"printer_name\":");
+        this.afterPrinter = encode(",\"label_template_id\":"+templateId+",\"labels\":{\"body\":[");
+        this.labelStart = encode("{\"label\":{");
+        this.labelEnd = encode("}}");
+        this.requestEnd = encode("]}}}}");
+    }
+
+    /**
+     * Writes a print request as JSON to the given stream.
+     * The stream is not closed.
+     * @param out the stream to write to
+     * @param printer the name of the printer
+     * @param labels the labels to include in the request
+     * @exception JsonException the stream could not be written
+     */
+    public void write(OutputStream out, String printer, List<LabelData> labels) {
+        Buffer buf = new Buffer(out);
+        try {
+            buf.put(requestStart);
+            buf.putString(printer);
+            buf.put(afterPrinter);
+            boolean first = true;
+            for (LabelData data : labels) {
+                if (!first) {
+                    buf.putByte(',');
+                }
+                first = false;
+                writeLabel(buf, data);
+            }
+            buf.put(requestEnd);
+            buf.flush();
+        } catch (IOException e) {
+            throw new JsonException("I/O error while writing JSON", e);
+        }
+    }
+
+    /**
+     * Writes the JSON object for a single label.
+     * Fields whose value is null are omitted.
+     * @param buf the buffer to write to
+     * @param data the label
+     * @exception IOException the buffer could not be flushed to its stream
+     */
+    private void writeLabel(Buffer buf, LabelData data) throws IOException {
+        buf.put(labelStart);
+        boolean first = true;
+        for (int i = 0; i < fields.length; ++i) {
+            String value = fields[i].apply(data);
+            if (value!=null) {
+                if (!first) {
+                    buf.putByte(',');
+                }
+                first = false;
+                buf.put(fieldKeys[i]);
+                buf.putString(value);
+            }
+        }
+        buf.put(labelEnd);
+    }
+
+    /**
+     * Gets a string as a quoted, escaped JSON string literal.
+     */
+    private static String quoted(String string) {
+        StringBuilder sb = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); ++i) {
+            char ch = string.charAt(i);
+            String escape = escape(ch);
+            if (escape!=null) {
+                sb.append(escape);
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Gets the JSON escape sequence for the given char, or null if it does not need escaping.
+     */
+    private static String escape(char ch) {
+        switch (ch) {
+            case '"': return "\\\"";
+            case '\\': return "\\\\";
+            case '\b': return "\\b";
+            case '\f': return "\\f";
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\t': return "\\t";
+        }
+        if (ch < 0x20) {
+            return String.format("\\u%04x", (int) ch);
+        }
+        return null;
+    }
+
+    private static byte[] encode(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A buffer of bytes waiting to be written to a stream.
+     */
+    private static class Buffer {
+        private final OutputStream out;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private int count;
+
+        Buffer(OutputStream out) {
+            this.out = out;
+        }
+
+        void put(byte[] data) throws IOException {
+            if (count + data.length > bytes.length) {
+                flush();
+                if (data.length > bytes.length) {
+                    out.write(data);
+                    return;
+                }
+            }
+            System.arraycopy(data, 0, bytes, count, data.length);
+            count += data.length;
+        }
+
+        void putByte(char ch) throws IOException {
+            if (count==bytes.length) {
+                flush();
+            }
+            bytes[count++] = (byte) ch;
+        }
+
+        /**
+         * Writes a string as a quoted JSON string literal, escaped as required and encoded as UTF-8.
+         * Unpaired surrogates are encoded as {@code ?}, as {@link String#getBytes} would.
+         */
+        void putString(String string) throws IOException {
+            putByte('"');
+            final int length = string.length();
+            for (int i = 0; i < length; ++i) {
+                if (count + MAX_BYTES_PER_CHAR > bytes.length) {
+                    flush();
+                }
+                char ch = string.charAt(i);
+                if (ch >= 0x20 && ch < 0x80 && ch!='"' && ch!='\\') {
+                    bytes[count++] = (byte) ch;
+                } else if (ch < 0x80) {
+                    putEscape(ch);
+                } else if (ch < 0x800) {
+                    bytes[count++] = (byte) (0xc0 | (ch >> 6));
+                    bytes[count++] = (byte) (0x80 | (ch & 0x3f));
+                } else if (Character.isHighSurrogate(ch) && i + 1 < length
+                        && Character.isLowSurrogate(string.charAt(i+1))) {
+                    int cp = Character.toCodePoint(ch, string.charAt(++i));
+                    bytes[count++] = (byte) (0xf0 | (cp >> 18));
+                    bytes[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    bytes[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    bytes[count++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(ch)) {
+                    bytes[count++] = '?';
+                } else {
+                    bytes[count++] = (byte) (0xe0 | (ch >> 12));
+                    bytes[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                    bytes[count++] = (byte) (0x80 | (ch & 0x3f));
+                }
+            }
+            putByte('"');
+        }
+
+        /**
+         * Writes the escape sequence for an ASCII char that cannot appear unescaped in a JSON string.
+         * The caller must ensure there is room in the buffer.
+         */
+        private void putEscape(char ch) {
+            bytes[count++] = '\\';
+            switch (ch) {
+                case '"': bytes[count++] = '"'; return;
+                case '\\': bytes[count++] = '\\'; return;
+                case '\b': bytes[count++] = 'b'; return;
+                case '\f': bytes[count++] = 'f'; return;
+                case '\n': bytes[count++] = 'n'; return;
+                case '\r': bytes[count++] = 'r'; return;
+                case '\t': bytes[count++] = 't'; return;
+            }
+            bytes[count++] = 'u';
+            bytes[count++] = '0';
+            bytes[count++] = '0';
+            bytes[count++] = HEX_DIGITS[ch >> 4];
+            bytes[count++] = HEX_DIGITS[ch & 0xf];
+        }
+
+        void flush() throws IOException {
+            if (count > 0) {
+                out.write(bytes, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * The config that determines a serializer: a template id and field names.
+     */
+    private static final class Key {
+        private final int templateId;
+        private final Map<Field, String> fieldNames;
+
+        Key(int templateId, Map<Field, String> fieldNames) {
+            this.templateId = templateId;
+            this.fieldNames = (fieldNames.isEmpty() ? new EnumMap<>(Field.class) : new EnumMap<>(fieldNames));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this==obj) return true;
+            if (obj==null || obj.getClass()!=this.getClass()) return false;
+            Key that = (Key) obj;
+            return (this.templateId==that.templateId && this.fieldNames.equals(that.fieldNames));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * templateId + fieldNames.hashCode();
+        }
+    }
+}
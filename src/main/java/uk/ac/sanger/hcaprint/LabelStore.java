@@ -0,0 +1,329 @@
+package uk.ac.sanger.hcaprint;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact, column-oriented list of labels, for holding very large numbers of rows.
+ * <p>Rather than keeping a {@link LabelData} object (and its strings) for every row, the store keeps
+ * the names of all the rows in one contiguous buffer: one byte per character while every name is
+ * Latin-1 (as barcodes are), switching to two bytes per character if necessary.
+ * Each row's date is held as a single int: dates in ISO format ({@code yyyy-MM-dd}) are encoded as
+ * their epoch day, with the strings for those days kept in a dictionary shared by all stores;
+ * any other date string is kept once per store, and encoded as an index into the store's own list.
+ * <p>{@link #get} creates a {@code LabelData} for the requested row when it is needed,
+ * so a sublist of a store (such as a range of rows to print) holds no per-row objects at all.
+ * <p>Labels can be added to the end of the store, and the store can be cleared,
+ * but other modifications are not supported. Adding labels does not invalidate sublists of the store.
+ * @author dr6
+ */
+public class LabelStore extends AbstractList<LabelData> implements RandomAccess {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NULL_DATE = Integer.MIN_VALUE;
+
+    /** The strings for ISO dates, by epoch day, shared by all stores */
+    private static final ConcurrentMap<Integer, String> ISO_DATES = new ConcurrentHashMap<>();
+
+    /** The characters of the names, while they are all Latin-1; otherwise null */
+    private byte[] nameBytes = new byte[INITIAL_CAPACITY * 16];
+    /** The characters of the names, once any is not Latin-1; otherwise null */
+    private char[] nameChars;
+    private int nameLength;
+    /** The end of each name in the name buffer, or the complement of the end if the name is null */
+    private int[] nameEnds = new int[INITIAL_CAPACITY];
+    /** The encoded date of each row */
+    private int[] dateCodes = new int[INITIAL_CAPACITY];
+    /** Date strings that are not in ISO format */
+    private final List<String> otherDates = new ArrayList<>();
+    private final Map<String, Integer> otherDateIndex = new HashMap<>();
+    private int size;
+
+    /**
+     * Adds a label to the end of the store.
+     * @param data the label to add
+     * @return true
+     */
+    @Override
+    public boolean add(LabelData data) {
+        if (size==nameEnds.length) {
+            int newCapacity = size * 2;
+            nameEnds = Arrays.copyOf(nameEnds, newCapacity);
+            dateCodes = Arrays.copyOf(dateCodes, newCapacity);
+        }
+        String name = data.getName();
+        if (name==null) {
+            nameEnds[size] = ~nameLength;
+        } else {
+            appendName(name);
+            nameEnds[size] = nameLength;
+        }
+        dateCodes[size] = encodeDate(data.getDate());
+        ++size;
+        // Rows already in the store never change, so sublists and iterators
+        // are not invalidated by adding to the end; only clear counts as a modification.
+        return true;
+    }
+
+    /**
+     * Appends the characters of the given name to the name buffer.
+     * If the name is not Latin-1, and the buffer is still one byte per character,
+     * the buffer is first converted to two bytes per character.
+     * @param name the name to append
+     */
+    private void appendName(String name) {
+        final int length = name.length();
+        if (nameChars==null && !isLatin1(name)) {
+            nameChars = new char[Math.max(nameBytes.length, 16)];
+            for (int i = 0; i < nameLength; ++i) {
+                nameChars[i] = (char) (nameBytes[i] & 0xff);
+            }
+            nameBytes = null;
+        }
+        if (nameChars==null) {
+            if (nameLength + length > nameBytes.length) {
+                nameBytes = Arrays.copyOf(nameBytes, Math.max(nameBytes.length * 2, nameLength + length));
+            }
+            for (int i = 0; i < length; ++i) {
+                nameBytes[nameLength + i] = (byte) name.charAt(i);
+            }
+        } else {
+            if (nameLength + length > nameChars.length) {
+                nameChars = Arrays.copyOf(nameChars, Math.max(nameChars.length * 2, nameLength + length));
+            }
+            name.getChars(0, length, nameChars, nameLength);
+        }
+        nameLength += length;
+    }
+
+    private static boolean isLatin1(String string) {
+        for (int i = 0; i < string.length(); ++i) {
+            if (string.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the code representing the given date string.
+     * @param date a date string (or null)
+     * @return the epoch day for an ISO date; otherwise a negative code for the date string
+     */
+    private int encodeDate(String date) {
+        if (date==null) {
+            return NULL_DATE;
+        }
+        int epochDay = isoEpochDay(date);
+        if (epochDay >= 0) {
+            ISO_DATES.putIfAbsent(epochDay, date);
+            return epochDay;
+        }
+        Integer index = otherDateIndex.get(date);
+        if (index==null) {
+            index = otherDates.size();
+            otherDates.add(date);
+            otherDateIndex.put(date, index);
+        }
+        return ~index;
+    }
+
+    /**
+     * Gets the date string represented by the given code.
+     * @param code a code from {@link #encodeDate}
+     * @return the date string
+     */
+    private String decodeDate(int code) {
+        if (code==NULL_DATE) {
+            return null;
+        }
+        if (code < 0) {
+            return otherDates.get(~code);
+        }
+        return ISO_DATES.computeIfAbsent(code, day -> LocalDate.ofEpochDay(day).toString());
+    }
+
+    /**
+     * Gets the epoch day of the given string, if it is a valid date (from 1970 onwards) written
+     * exactly as {@code yyyy-MM-dd}, so that it can be reconstructed from its epoch day.
+     * @param date a date string
+     * @return the epoch day of the date, or -1 if the string is not an ISO date from 1970 onwards
+     */
+    static int isoEpochDay(String date) {
+        if (date.length()!=10 || date.charAt(4)!='-' || date.charAt(7)!='-') {
+            return -1;
+        }
+        int year = digits(date, 0, 4);
+        int month = digits(date, 5, 7);
+        int day = digits(date, 8, 10);
+        if (year < 1970 || month < 0 || day < 0) {
+            return -1;
+        }
+        try {
+            return (int) LocalDate.of(year, month, day).toEpochDay();
+        } catch (DateTimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a run of decimal digits.
+     * @return the number represented by the digits, or -1 if any character is not a digit
+     */
+    private static int digits(String string, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; ++i) {
+            char ch = string.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Gets the label at the given index.
+     * The returned object is created by this call; it is not the object that was added.
+     * @exception IndexOutOfBoundsException if the index is negative or {@code >= size()}
+     */
+    @Override
+    public LabelData get(int index) {
+        return new LabelData(getName(index), getDate(index));
+    }
+
+    /**
+     * Gets the name of the label at the given index.
+     * @exception IndexOutOfBoundsException if the index is negative or {@code >= size()}
+     */
+    public String getName(int index) {
+        Objects.checkIndex(index, size);
+        int end = nameEnds[index];
+        if (end < 0) {
+            return null;
+        }
+        int start = (index==0 ? 0 : nameStart(index));
+        if (nameChars==null) {
+            return new String(nameBytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        return new String(nameChars, start, end - start);
+    }
+
+    /**
+     * Gets the hash code of the name at the given index, without creating a string.
+     * The hash code is the same as {@link String#hashCode} of the name.
+     * @param index the index of a row with a name
+     * @return the hash code of the name
+     * @exception IndexOutOfBoundsException if the index is negative or {@code >= size()}
+     * @exception NullPointerException if the row has no name
+     */
+    public int nameHashCode(int index) {
+        Objects.checkIndex(index, size);
+        int end = nameEnds[index];
+        if (end < 0) {
+            throw new NullPointerException("Row "+index+" has no name.");
+        }
+        int h = 0;
+        if (nameChars==null) {
+            for (int i = (index==0 ? 0 : nameStart(index)); i < end; ++i) {
+                h = 31 * h + (nameBytes[i] & 0xff);
+            }
+        } else {
+            for (int i = (index==0 ? 0 : nameStart(index)); i < end; ++i) {
+                h = 31 * h + nameChars[i];
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Do the rows at the given indexes have equal names? Two null names are equal.
+     * This compares the names without creating any strings.
+     * @exception IndexOutOfBoundsException if either index is negative or {@code >= size()}
+     */
+    public boolean namesEqual(int index1, int index2) {
+        Objects.checkIndex(index1, size);
+        Objects.checkIndex(index2, size);
+        int end1 = nameEnds[index1], end2 = nameEnds[index2];
+        if (end1 < 0 || end2 < 0) {
+            return (end1 < 0 && end2 < 0);
+        }
+        int start1 = (index1==0 ? 0 : nameStart(index1));
+        int start2 = (index2==0 ? 0 : nameStart(index2));
+        if (end1 - start1 != end2 - start2) {
+            return false;
+        }
+        if (nameChars==null) {
+            return Arrays.equals(nameBytes, start1, end1, nameBytes, start2, end2);
+        }
+        return Arrays.equals(nameChars, start1, end1, nameChars, start2, end2);
+    }
+
+    /**
+     * Is the name at the given index equal to the given string? A null name equals a null string.
+     * This compares the name without creating a string.
+     * @exception IndexOutOfBoundsException if the index is negative or {@code >= size()}
+     */
+    public boolean nameEquals(int index, String name) {
+        Objects.checkIndex(index, size);
+        int end = nameEnds[index];
+        if (end < 0 || name==null) {
+            return (end < 0 && name==null);
+        }
+        int start = (index==0 ? 0 : nameStart(index));
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < end - start; ++i) {
+            char ch = (nameChars==null ? (char) (nameBytes[start + i] & 0xff) : nameChars[start + i]);
+            if (ch!=name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Does the row at the given index have a name?
+     * @exception IndexOutOfBoundsException if the index is negative or {@code >= size()}
+     */
+    public boolean hasName(int index) {
+        Objects.checkIndex(index, size);
+        return (nameEnds[index] >= 0);
+    }
+
+    /**
+     * Gets the start of the name at the given index: the end of the previous name.
+     */
+    private int nameStart(int index) {
+        int prevEnd = nameEnds[index-1];
+        return (prevEnd < 0 ? ~prevEnd : prevEnd);
+    }
+
+    /**
+     * Gets the date of the label at the given index.
+     * Rows with the same date share the same string.
+     * @exception IndexOutOfBoundsException if the index is negative or {@code >= size()}
+     */
+    public String getDate(int index) {
+        Objects.checkIndex(index, size);
+        return decodeDate(dateCodes[index]);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        nameLength = 0;
+        size = 0;
+        otherDates.clear();
+        otherDateIndex.clear();
+        ++modCount;
+    }
+}
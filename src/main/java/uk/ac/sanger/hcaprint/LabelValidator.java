@@ -0,0 +1,283 @@
+package uk.ac.sanger.hcaprint;
+
+import uk.ac.sanger.hcaprint.PrintRequest.Field;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Checks labels against rules for the values of their fields, so that malformed barcodes and dates can be
+ * found before they are printed.
+ * <p>Each rule applies to one field. A missing value is checked as an empty string.
+ * Rules are created (and patterns compiled) once, when the config is loaded; they are immutable, so the
+ * validator may be used from many threads at once. {@link #findInvalid} checks a list of labels in parallel.
+ * <p>The rules in the config are given for the {@code barcode} and {@code date} fields, as:
+ * <ul>
+ *     <li>{@code validate_<field>_pattern} a regular expression that the whole value must match</li>
+ *     <li>{@code validate_<field>_length} the allowed length of the value, as {@code n} or {@code min-max}</li>
+ *     <li>{@code validate_<field>_checksum} {@code luhn} or {@code gs1}: the last digit of the value must be
+ *     the check digit of the digits before it (other characters are ignored)</li>
+ * </ul>
+ * Other kinds of rule can be added by implementing {@link Rule}.
+ * @author dr6
+ */
+public class LabelValidator {
+    /**
+     * A rule for the value of a field.
+     * Rules must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface Rule {
+        /**
+         * Checks a value.
+         * @param value the value to check (never null)
+         * @return a description of what is wrong with the value, or null if it is valid
+         */
+        String check(String value);
+    }
+
+    /** The kinds of rule that can be given in the config */
+    private static final List<String> RULE_KINDS = List.of("pattern", "length", "checksum");
+    /** The fields that rules can be given for in the config */
+    private static final List<Field> RULE_FIELDS = List.of(Field.BARCODE, Field.DATE);
+    /** The number of labels below which a list is checked in a single task */
+    private static final int SEQUENTIAL_THRESHOLD = 4096;
+
+    private final Field[] fields;
+    private final Rule[] rules;
+
+    /**
+     * Constructs a validator with the given rules.
+     * @param fieldRules the rules for each field; the rules are applied in order
+     */
+    public LabelValidator(Map<Field, List<Rule>> fieldRules) {
+        List<Field> fields = new ArrayList<>();
+        List<Rule> rules = new ArrayList<>();
+        fieldRules.forEach((field, list) -> {
+            for (Rule rule : list) {
+                fields.add(field);
+                rules.add(rule);
+            }
+        });
+        this.fields = fields.toArray(new Field[0]);
+        this.rules = rules.toArray(new Rule[0]);
+    }
+
+    /**
+     * Creates a validator from the rules in the given config.
+     * Problems with the rules are added to the given list.
+     * @param config a function giving the (trimmed) value of a config property, or an empty string
+     * @param problems list to which problems with the rules are added
+     * @return a validator with the rules given in the config (which may be none)
+     */
+    static LabelValidator fromConfig(Function<String, String> config, List<String> problems) {
+        Map<Field, List<Rule>> fieldRules = new EnumMap<>(Field.class);
+        for (Field field : RULE_FIELDS) {
+            for (String kind : RULE_KINDS) {
+                String key = "validate_"+field.name().toLowerCase()+"_"+kind;
+                String value = config.apply(key);
+                if (value.isEmpty()) {
+                    continue;
+                }
+                try {
+                    fieldRules.computeIfAbsent(field, f -> new ArrayList<>()).add(createRule(kind, value));
+                } catch (IllegalArgumentException e) {
+                    problems.add("Invalid "+key+": "+e.getMessage());
+                }
+            }
+        }
+        return new LabelValidator(fieldRules);
+    }
+
+    private static Rule createRule(String kind, String value) {
+        switch (kind) {
+            case "pattern": return patternRule(value);
+            case "length": return lengthRule(value);
+            case "checksum": return checksumRule(value);
+            default: throw new IllegalArgumentException("Unknown rule: "+kind);
+        }
+    }
+
+    /**
+     * Creates a rule that the whole value must match the given regular expression.
+     * @param regex the regular expression
+     * @return a rule for the pattern
+     * @exception IllegalArgumentException the regular expression is invalid
+     */
+    public static Rule patternRule(String regex) {
+        final Pattern pattern = Pattern.compile(regex);
+        return value -> (pattern.matcher(value).matches() ? null : "does not match "+regex);
+    }
+
+    /**
+     * Creates a rule for the length of the value.
+     * @param spec the allowed length, as {@code n} or {@code min-max}
+     * @return a rule for the length
+     * @exception IllegalArgumentException the specification is invalid
+     */
+    public static Rule lengthRule(String spec) {
+        int d = spec.indexOf('-');
+        final int min, max;
+        try {
+            min = Integer.parseInt(d < 0 ? spec : spec.substring(0, d).trim());
+            max = (d < 0 ? min : Integer.parseInt(spec.substring(d+1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(spec);
+        }
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException(spec);
+        }
+        final String description = (min==max ? "should have "+min+" characters"
+                : "should have "+min+" to "+max+" characters");
+        return value -> (value.length() >= min && value.length() <= max ? null : description);
+    }
+
+    /**
+     * Creates a rule that the last digit of the value is the check digit of the digits before it.
+     * Characters that are not digits are ignored.
+     * @param algorithm {@code luhn} for the Luhn algorithm, or {@code gs1} for the GS1 (EAN/UPC) algorithm
+     * @return a rule for the checksum
+     * @exception IllegalArgumentException the algorithm is not known
+     */
+    public static Rule checksumRule(String algorithm) {
+        // Weights for the digits from the right, starting with the check digit
+        final int oddWeight, evenWeight;
+        final boolean luhn;
+        switch (algorithm.toLowerCase()) {
+            case "luhn":
+                oddWeight = 1;
+                evenWeight = 2;
+                luhn = true;
+                break;
+            case "gs1":
+                oddWeight = 1;
+                evenWeight = 3;
+                luhn = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown checksum algorithm: "+algorithm);
+        }
+        final String description = "has an incorrect "+algorithm.toLowerCase()+" check digit";
+        return value -> {
+            int sum = 0;
+            int numDigits = 0;
+            for (int i = value.length()-1; i >= 0; --i) {
+                char ch = value.charAt(i);
+                if (ch < '0' || ch > '9') {
+                    continue;
+                }
+                int digit = ch - '0';
+                int weighted = digit * (numDigits % 2==0 ? oddWeight : evenWeight);
+                if (luhn && weighted > 9) {
+                    weighted -= 9;
+                }
+                sum += weighted;
+                ++numDigits;
+            }
+            return (numDigits >= 2 && sum % 10==0 ? null : description);
+        };
+    }
+
+    /**
+     * Does this validator have any rules?
+     */
+    public boolean hasRules() {
+        return (rules.length > 0);
+    }
+
+    /**
+     * Checks a label against the rules.
+     * @param label the label to check
+     * @return a description of the first problem found, or null if the label is valid
+     */
+    public String check(LabelData label) {
+        for (int i = 0; i < rules.length; ++i) {
+            String value = fields[i].apply(label);
+            String problem = rules[i].check(value==null ? "" : value);
+            if (problem!=null) {
+                String fieldName = fields[i].name().toLowerCase();
+                return (value==null || value.isEmpty() ? "Missing "+fieldName+" ("+problem+")"
+                        : "The "+fieldName+" "+problem+": "+value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is the given label valid?
+     * @param label the label to check
+     * @return true if the label satisfies every rule
+     */
+    public boolean isValid(LabelData label) {
+        for (int i = 0; i < rules.length; ++i) {
+            String value = fields[i].apply(label);
+            if (rules[i].check(value==null ? "" : value)!=null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the invalid labels in the given list.
+     * Large lists are split into chunks which are checked in parallel, in the common fork-join pool.
+     * The list must not change while it is being checked.
+     * @param labels the labels to check (ideally a {@link RandomAccess} list)
+     * @return the indexes of the invalid labels in the list, in ascending order
+     */
+    public int[] findInvalid(List<LabelData> labels) {
+        if (!hasRules() || labels.isEmpty()) {
+            return new int[0];
+        }
+        if (labels.size() <= SEQUENTIAL_THRESHOLD) {
+            return new FindInvalid(labels, 0, labels.size()).compute();
+        }
+        return ForkJoinPool.commonPool().invoke(new FindInvalid(labels, 0, labels.size()));
+    }
+
+    /**
+     * A task finding the invalid labels in a range of a list, splitting the range in half until it is small
+     * enough to check directly.
+     */
+    private class FindInvalid extends RecursiveTask<int[]> {
+        private final List<LabelData> labels;
+        private final int from, to;
+
+        FindInvalid(List<LabelData> labels, int from, int to) {
+            this.labels = labels;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                int[] invalid = new int[16];
+                int count = 0;
+                for (int i = from; i < to; ++i) {
+                    if (!isValid(labels.get(i))) {
+                        if (count==invalid.length) {
+                            invalid = Arrays.copyOf(invalid, count * 2);
+                        }
+                        invalid[count++] = i;
+                    }
+                }
+                return Arrays.copyOf(invalid, count);
+            }
+            int mid = (from + to) >>> 1;
+            FindInvalid left = new FindInvalid(labels, from, mid);
+            left.fork();
+            int[] right = new FindInvalid(labels, mid, to).compute();
+            int[] leftResult = left.join();
+            if (right.length==0) {
+                return leftResult;
+            }
+            int[] combined = Arrays.copyOf(leftResult, leftResult.length + right.length);
+            System.arraycopy(right, 0, combined, leftResult.length, right.length);
+            return combined;
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package uk.ac.sanger.hcaprint;
 
 import javax.swing.*;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.net.URL;
 import java.util.Properties;
 
 /**
  * Main entry point for the application.
- * Loads the properties from a file, and launches the {@link AppFrame}.
+ * Loads the properties from a file, checks them by building a {@link PrintConfig}, and launches the {@link AppFrame}.
+ * If the config is invalid, the problems are reported and the application exits, before anything is printed.
+ * If an {@code input} argument is given, the labels are printed by a {@link CommandLinePrinter}
+ * instead, without any user interface.
+ * If a {@code gateway_port} argument is given, the application runs as a {@link PrintGateway} instead,
+ * also without any user interface.
+ * <p>If an {@code exit_after_startup=true} argument is given, the application exits as soon as its window has
+ * been shown. This is used to measure how long startup takes, and to record the classes loaded at startup
+ * in a class-data-sharing archive (see the {@code cds} profile in the pom).
  * @author dr6
  */
 public class Main {
@@ -26,19 +37,60 @@ public class Main {
                 props.put(key, value);
             }
         }
+        boolean commandLine = !props.getProperty("input", "").trim().isEmpty();
+        PrintConfig config;
+        try {
+            config = new PrintConfig(props);
+        } catch (ConfigException e) {
+            showError(commandLine, "Invalid config:"+System.lineSeparator()+e.getMessage());
+            System.exit(CommandLinePrinter.EXIT_BAD_INPUT);
+            return;
+        }
+        if (commandLine) {
+            System.exit(new CommandLinePrinter(config, System.err).run());
+        }
+        if (config.getGatewayPort() > 0) {
+            int status = PrintGateway.run(config);
+            if (status!=0) {
+                System.exit(status);
+            }
+            return;
+        }
+        if (GraphicsEnvironment.isHeadless()) {
+            System.err.println("There is no display to show the application. To print without one, give an input argument.");
+            System.exit(1);
+        }
+        launchApp(config);
+    }
+
+    /**
+     * Shows the application's window, using the given config.
+     * @param config the application's config
+     */
+    private static void launchApp(PrintConfig config) {
         System.setProperty("apple.laf.useScreenMenuBar", "true");
-        System.setProperty("apple.awt.application.name", props.getProperty("app_title", "HCA Print Tool"));
+        System.setProperty("apple.awt.application.name", config.getProperty("app_title", "HCA Print Tool"));
         SwingUtilities.invokeLater(() -> {
-            AppFrame frame = new AppFrame(props);
+            AppFrame frame = new AppFrame(config);
             frame.setBounds(100, 100, 500, 500);
             frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            if (Boolean.parseBoolean(config.getProperty("exit_after_startup", ""))) {
+                frame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowOpened(WindowEvent e) {
+                        // Let the window paint and the rest of the application start first
+                        SwingUtilities.invokeLater(() -> SwingUtilities.invokeLater(() -> System.exit(0)));
+                    }
+                });
+            }
             frame.setVisible(true);
         });
     }
 
     /**
      * Loads a properties file from the named resource.
-     * If the file cannot be read, an error message will be shown, and the method will return null.
+     * If the file cannot be read, an error message will be shown (or written to {@code System.err},
+     * if there is no display), and the method will return null.
      * @param filename filename to load
      * @return the properties loaded, or null if there was an error
      */
@@ -53,8 +105,22 @@ public class Main {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        JOptionPane.showMessageDialog(null, "Could not load file", "Error",
-                JOptionPane.ERROR_MESSAGE);
+        showError(false, "Could not load file: "+filename);
         return null;
     }
+
+    /**
+     * Shows an error message before the application has started.
+     * The message is shown in a dialog, unless there is no display or the application is running
+     * from the command line, in which case it is written to {@code System.err}.
+     * @param commandLine whether the application is running from the command line
+     * @param message the message to show
+     */
+    private static void showError(boolean commandLine, String message) {
+        if (commandLine || GraphicsEnvironment.isHeadless()) {
+            System.err.println(message);
+        } else {
+            JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
 }
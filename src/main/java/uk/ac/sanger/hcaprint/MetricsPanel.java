@@ -0,0 +1,120 @@
+package uk.ac.sanger.hcaprint;
+
+import uk.ac.sanger.hcaprint.PrintMetrics.Histogram;
+import uk.ac.sanger.hcaprint.PrintMetrics.PrinterStats;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Panel for showing the print metrics for each printer (in a dialog).
+ * The table is refreshed every second while the dialog is open, so it can be left open while printing.
+ * Times are shown in milliseconds, as the median and 95th percentile, e.g. {@code 12.5 / 40.1}.
+ * @author dr6
+ */
+public class MetricsPanel extends JPanel {
+    private static final int REFRESH_MILLIS = 1000;
+
+    private PrintMetrics metrics;
+    private FunctionalTableModel<PrinterStats> tableModel;
+    private JTable table;
+    private JButton okButton;
+    private Timer timer;
+    private JDialog dialog;
+
+    public MetricsPanel(PrintMetrics metrics) {
+        this.metrics = metrics;
+        initComponents();
+        layOutComponents();
+        refresh();
+    }
+
+    private void initComponents() {
+        tableModel = new FunctionalTableModel<>(
+                PrinterStats::getPrinter,
+                PrinterStats::getRequests,
+                PrinterStats::getFailures,
+                PrinterStats::getRetries,
+                PrinterStats::getLabels,
+                ps -> describeResponseCodes(ps.getResponseCodes()),
+                ps -> describeSize(ps.getBytes()),
+                ps -> describeTime(ps.getConnectTime()),
+                ps -> describeTime(ps.getWriteTime()),
+                ps -> describeTime(ps.getFirstByteTime()),
+                ps -> describeTime(ps.getTotalTime()),
+                ps -> describeMillis(ps.getTotalTime().getCount(), ps.getTotalTime().getMax())
+        );
+        tableModel.setHeadings("Printer", "Requests", "Failed", "Retries", "Labels", "Responses",
+                "Mean size", "Connect ms", "Write ms", "First byte ms", "Total ms", "Max ms");
+        table = new JTable(tableModel);
+        table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        table.setPreferredScrollableViewportSize(new Dimension(900, 150));
+        okButton = new JButton("OK");
+        okButton.addActionListener(e -> okPressed());
+        timer = new Timer(REFRESH_MILLIS, e -> refresh());
+    }
+
+    private void layOutComponents() {
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        this.setLayout(new BorderLayout());
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        JPanel bp = new JPanel();
+        bp.add(okButton);
+        add(bp, BorderLayout.SOUTH);
+    }
+
+    private void refresh() {
+        tableModel.setItems(metrics.getStats());
+    }
+
+    private static String describeResponseCodes(Map<Integer, Long> responseCodes) {
+        return responseCodes.entrySet().stream()
+                .map(e -> (e.getKey()==0 ? "none" : e.getKey()) + " x " + e.getValue())
+                .collect(Collectors.joining(", "));
+    }
+
+    private static String describeSize(Histogram bytes) {
+        if (bytes.getCount()==0) {
+            return "";
+        }
+        return String.format(Locale.ROOT, "%.1f KB", bytes.getMean() / 1024);
+    }
+
+    private static String describeTime(Histogram time) {
+        if (time.getCount()==0) {
+            return "";
+        }
+        return describeMillis(1, time.getPercentile(50)) + " / " + describeMillis(1, time.getPercentile(95));
+    }
+
+    private static String describeMillis(long count, long nanos) {
+        return (count==0 ? "" : String.format(Locale.ROOT, "%.1f", nanos / 1e6));
+    }
+
+    private void okPressed() {
+        if (dialog!=null) {
+            dialog.dispose();
+        }
+    }
+
+    public void showDialog(Frame owner) {
+        this.dialog = new JDialog(owner, "Print metrics", false);
+        this.dialog.setContentPane(this);
+        this.dialog.pack();
+        this.dialog.setLocationRelativeTo(owner);
+        this.dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        this.dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+            }
+        });
+        timer.start();
+        this.dialog.setVisible(true);
+    }
+}
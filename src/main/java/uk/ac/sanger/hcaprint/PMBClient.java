@@ -1,57 +1,189 @@
 package uk.ac.sanger.hcaprint;
 
+import javax.json.JsonException;
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A tool for sending print requests to PrintMyBarcode.
+ * A client is intended to be long-lived and reused for many print requests, and may be shared between threads.
+ * <p>The blocking {@link #print(PrintRequest) print} methods use {@code HttpURLConnection}.
+ * Responses are read to the end and connections are left open after successful requests, so the
+ * JDK's keep-alive cache can reuse the underlying sockets for later requests to the same host and proxy.
+ * <p>The asynchronous {@link #printAsync printAsync} method uses a {@code java.net.http.HttpClient},
+ * which keeps its own pool of connections, and allows many requests to be in flight at once.
+ * Its request bodies are streamed too: each body is written on a background thread as the
+ * {@code HttpClient} asks for it, so the whole body is never held in memory.
+ * <p>The timing, size and outcome of every request are recorded in the client's {@link PrintMetrics}.
+ * <p>If the client has a {@link PrintHistory}, the labels of every request that is accepted are recorded in it.
+ * <p>Request bodies can optionally be {@link #setCompressRequests compressed} with gzip.
+ * If PrintMyBarcode rejects a compressed request as an unsupported media type (415),
+ * the request is sent again uncompressed, and the client stops compressing requests.
  * @author dr6
  */
 public class PMBClient {
-    private String location;
-    private Proxy proxy;
+    /**
+     * A listener for the progress of a batched print.
+     */
+    @FunctionalInterface
+    public interface BatchListener {
+        /**
+         * Called after each batch has been sent successfully.
+         * @param batchIndex the index of the batch that was sent
+         * @param labelsSent the total number of labels sent so far, including this batch
+         * @return true to carry on sending batches; false to stop
+         */
+        boolean batchSent(int batchIndex, int labelsSent);
+    }
+
+    /** The size of the buffer used when compressing request bodies */
+    private static final int BUFFER_SIZE = 8192;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    /** Threads writing the bodies of asynchronous requests; there is one for each request being sent */
+    private static final ExecutorService BODY_WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "pmb-body-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final URL url;
+    private final Proxy proxy;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private PrintMetrics metrics = new PrintMetrics();
+    private volatile boolean compressRequests;
+    private volatile PrintHistory history;
+    private volatile boolean compressionRejected;
+    private HttpClient httpClient;
+
+    /**
+     * Constructs a client for sending print requests to the given location, without timeouts.
+     * @param location the location where PMB will receive print requests
+     * @param proxyString optional proxy string in format {@code "location:port"}
+     * @exception MalformedURLException the location is not a valid URL
+     * @exception IllegalArgumentException the proxy string is not valid
+     */
+    public PMBClient(String location, String proxyString) throws MalformedURLException {
+        this(location, proxyString, null, null);
+    }
 
     /**
      * Constructs a client for sending print requests to the given location.
      * @param location the location where PMB will receive print requests
      * @param proxyString optional proxy string in format {@code "location:port"}
+     * @param connectTimeout the time allowed to connect to PrintMyBarcode, or null for no timeout
+     * @param readTimeout the time allowed to wait for a response from PrintMyBarcode, or null for no timeout
+     * @exception MalformedURLException the location is not a valid URL
+     * @exception IllegalArgumentException the proxy string is not valid
      */
-    public PMBClient(String location, String proxyString) {
-        this.location = location;
-        this.proxy = getProxy(proxyString);
+    public PMBClient(String location, String proxyString, Duration connectTimeout, Duration readTimeout)
+            throws MalformedURLException {
+        this(new URL(location), PrintConfig.parseProxy(proxyString), connectTimeout, readTimeout);
     }
 
     /**
-     * Gets a {@code Proxy} object based on the given string.
-     * If the string is null or has no content, null is returned.
-     * If given, the string should be of the form {@code "location:port"}.
-     * If it cannot be understood, a message will be output to {@code System.err},
-     * and then null will be returned.
-     * @param proxyString the string describing the proxy, or null (or a blank string) if no proxy is required
-     * @return a proxy, or null
+     * Constructs a client for sending print requests to the location, through the proxy and with the timeouts
+     * and compression given in the config.
+     * @param config the application's config
      */
-    private static Proxy getProxy(String proxyString) {
-        if (proxyString==null) {
-            return null;
-        }
-        proxyString = proxyString.trim();
-        if (proxyString.isEmpty()) {
-            return null;
+    public PMBClient(PrintConfig config) {
+        this(config.getPmbUrl(), config.getProxy(), config.getConnectTimeout(), config.getReadTimeout());
+        this.compressRequests = config.isCompressRequests();
+    }
+
+    private PMBClient(URL url, Proxy proxy, Duration connectTimeout, Duration readTimeout) {
+        this.url = url;
+        this.proxy = proxy;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Gets the metrics recording how this client's requests perform.
+     */
+    public synchronized PrintMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the metrics in which this client should record how its requests perform.
+     * @param metrics the metrics to record requests in
+     */
+    public synchronized void setMetrics(PrintMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+    }
+
+    /**
+     * Sets the history in which the labels of successful requests should be recorded.
+     * @param history the history to record printed labels in, or null to not record them
+     */
+    public void setHistory(PrintHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Records the labels of a successful request in the history, if there is one.
+     * A failure to write the history is reported to {@code System.err}, but does not fail the request.
+     * @param request a request that PrintMyBarcode has accepted
+     */
+    private void recordPrinted(PrintRequest request) {
+        PrintHistory history = this.history;
+        if (history!=null) {
+            try {
+                history.record(request);
+            } catch (IOException e) {
+                System.err.println("Could not record printed labels in history.");
+                e.printStackTrace();
+            }
         }
-        int c = proxyString.indexOf(':');
-        if (c <= 0) {
-            System.err.println("Invalid proxy string: "+proxyString);
-            return null;
+    }
+
+    /**
+     * Sets whether request bodies should be compressed with gzip.
+     * Compression makes large requests much smaller, which matters most over slow links.
+     * @param compressRequests true to compress requests; false to send them uncompressed
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    /**
+     * Should the next request be compressed?
+     * Requests are compressed if compression is enabled, and PrintMyBarcode has not rejected a compressed request.
+     */
+    private boolean isCompressing() {
+        return (compressRequests && !compressionRejected);
+    }
+
+    /**
+     * Checks whether the given failure of a compressed request means that PrintMyBarcode does not accept
+     * compressed requests. If so, the client stops compressing requests.
+     * @param error the reason a compressed request failed
+     * @return true if the request should be sent again uncompressed; otherwise false
+     */
+    private boolean isCompressionRejected(Throwable error) {
+        if (error instanceof CompletionException && error.getCause()!=null) {
+            error = error.getCause();
         }
-        int port;
-        try {
-            port = Integer.parseInt(proxyString.substring(c+1));
-        } catch (NumberFormatException e) {
-            System.err.println("Invalid proxy string: "+proxyString);
-            e.printStackTrace();
-            return null;
+        if (error instanceof PMBResponseException
+                && ((PMBResponseException) error).getResponseCode()==HTTP_UNSUPPORTED_MEDIA_TYPE) {
+            if (!compressionRejected) {
+                compressionRejected = true;
+                System.err.println("PrintMyBarcode does not accept compressed requests. Sending uncompressed.");
+            }
+            return true;
         }
-        return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyString.substring(0, c), port));
+        return false;
     }
 
     /**
@@ -60,37 +192,473 @@ public class PMBClient {
      * @exception IOException there was a problem sending the print request
      */
     public void print(PrintRequest request) throws IOException {
-        HttpURLConnection connection = openConnection();
+        boolean compress = isCompressing();
+        try {
+            print(request, compress);
+        } catch (PMBResponseException e) {
+            if (!compress || !isCompressionRejected(e)) {
+                throw e;
+            }
+            print(request, false);
+        }
+    }
+
+    /**
+     * Sends a print request, compressed or not.
+     * @param request the print request to send
+     * @param compress whether to compress the request body
+     * @exception IOException there was a problem sending the print request
+     */
+    private void print(PrintRequest request, boolean compress) throws IOException {
+        PrintMetrics.Sample sample = getMetrics().start(request);
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection();
+            post(request, connection, sample, compress);
+        } catch (IOException | RuntimeException e) {
+            // A failed connection may be left part way through a request, so must not be reused
+            if (connection!=null) {
+                connection.disconnect();
+            }
+            sample.failed(e);
+            throw e;
+        }
+        recordPrinted(request);
+    }
+
+    /**
+     * Sends a sequence of print requests, one after another.
+     * The connection to PrintMyBarcode is kept alive between batches, so it can be reused.
+     * If one batch fails, the remaining batches are not sent.
+     * @param batches the print requests to send, in order
+     * @exception BatchPrintException one of the batches could not be sent;
+     *            the exception indicates which batch failed, and how many labels were sent before it
+     */
+    public void print(List<PrintRequest> batches) throws BatchPrintException {
+        print(batches, null);
+    }
+
+    /**
+     * Sends a sequence of print requests, one after another, reporting progress to the given listener.
+     * The connection to PrintMyBarcode is kept alive between batches, so it can be reused.
+     * If one batch fails, or the listener asks to stop, the remaining batches are not sent.
+     * @param batches the print requests to send, in order
+     * @param listener a listener to be told after each batch is sent (may be null)
+     * @exception BatchPrintException one of the batches could not be sent, or the listener asked to stop;
+     *            the exception indicates which batch was not sent, and how many labels were sent before it
+     */
+    public void print(List<PrintRequest> batches, BatchListener listener) throws BatchPrintException {
+        int labelsSent = 0;
+        for (int i = 0; i < batches.size(); ++i) {
+            PrintRequest batch = batches.get(i);
+            try {
+                print(batch);
+            } catch (IOException e) {
+                throw new BatchPrintException(i, labelsSent, e);
+            }
+            labelsSent += batch.size();
+            if (listener!=null && !listener.batchSent(i, labelsSent) && i+1 < batches.size()) {
+                throw new BatchPrintException(i+1, labelsSent, new InterruptedIOException("Printing was cancelled."));
+            }
+        }
+    }
+
+    /**
+     * Sends a print request asynchronously.
+     * The returned future completes with a {@link PrintResult} if PrintMyBarcode accepts the request,
+     * or completes exceptionally with an {@code IOException} if the request could not be sent,
+     * or if the response code was not in the 2## range.
+     * @param request the print request to send
+     * @return a future result of the request
+     */
+    public CompletableFuture<PrintResult> printAsync(PrintRequest request) {
+        boolean compress = isCompressing();
+        if (!compress) {
+            return printAsync(request, false);
+        }
+        return printAsync(request, true).handle((result, error) -> {
+            if (error==null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            if (isCompressionRejected(error)) {
+                return printAsync(request, false);
+            }
+            return CompletableFuture.<PrintResult>failedFuture(error);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Sends a print request asynchronously, compressed or not.
+     * @param request the print request to send
+     * @param compress whether to compress the request body
+     * @return a future result of the request
+     */
+    private CompletableFuture<PrintResult> printAsync(PrintRequest request, boolean compress) {
+        PrintMetrics.Sample sample = getMetrics().start(request);
+        HttpRequest httpRequest;
         try {
-            post(request, connection);
-        } finally {
-            connection.disconnect();
+            // A prepared body is sent as it is, rather than streamed
+            byte[] prepared = (compress ? null : request.getPreparedBody());
+            HttpRequest.BodyPublisher body;
+            if (prepared!=null) {
+                body = HttpRequest.BodyPublishers.ofByteArray(prepared);
+                sample.written(prepared.length);
+            } else {
+                body = new StreamingBody(request, compress, sample);
+            }
+            HttpRequest.Builder builder = HttpRequest.newBuilder(url.toURI())
+                    .header("Content-Type", "application/json; charset=UTF-8")
+                    .header("Accept", "application/json")
+                    .POST(body);
+            if (compress) {
+                builder.header("Content-Encoding", "gzip");
+            }
+            if (request.getWarmUpLabels() > 0) {
+                builder.header(PrintRequest.WARM_UP_LABELS_HEADER, String.valueOf(request.getWarmUpLabels()));
+            }
+            if (readTimeout!=null) {
+                builder.timeout(readTimeout);
+            }
+            httpRequest = builder.build();
+        } catch (URISyntaxException e) {
+            IOException error = new IOException("Failed to send print request.", e);
+            sample.failed(error);
+            return CompletableFuture.failedFuture(error);
+        }
+        HttpResponse.BodyHandler<String> bodyHandler = responseInfo -> {
+            sample.firstByte();
+            return HttpResponse.BodyHandlers.ofString().apply(responseInfo);
+        };
+        return getHttpClient().sendAsync(httpRequest, bodyHandler)
+                .thenCompose(response -> {
+                    int responseCode = response.statusCode();
+                    if (!isSuccess(responseCode)) {
+                        return CompletableFuture.<PrintResult>failedFuture(responseError(responseCode, response.body()));
+                    }
+                    return CompletableFuture.completedFuture(new PrintResult(request, responseCode, response.body()));
+                })
+                .whenComplete((result, error) -> {
+                    if (error!=null) {
+                        sample.failed(error);
+                    } else {
+                        sample.succeeded(result.getResponseCode());
+                        recordPrinted(request);
+                    }
+                });
+    }
+
+    /**
+     * Sends a sequence of print requests asynchronously, one after another, reporting progress to the given listener.
+     * Each batch is sent when the previous one has been accepted.
+     * If one batch fails, or the listener asks to stop, the remaining batches are not sent, and the returned
+     * future completes exceptionally with a {@link BatchPrintException}.
+     * The listener is called from the thread that completed the previous batch.
+     * @param batches the print requests to send, in order
+     * @param listener a listener to be told after each batch is sent (may be null)
+     * @return a future that completes when all the batches have been sent
+     */
+    public CompletableFuture<Void> printAsync(List<PrintRequest> batches, BatchListener listener) {
+        return printAsync(batches, listener, 0, 0);
+    }
+
+    /**
+     * Sends the batches from the given index onwards asynchronously.
+     * @param batches the print requests to send, in order
+     * @param listener a listener to be told after each batch is sent (may be null)
+     * @param index the index of the next batch to send
+     * @param labelsSent the number of labels sent in the batches before {@code index}
+     * @return a future that completes when the remaining batches have been sent
+     */
+    private CompletableFuture<Void> printAsync(List<PrintRequest> batches, BatchListener listener,
+                                               int index, int labelsSent) {
+        if (index >= batches.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        PrintRequest batch = batches.get(index);
+        return printAsync(batch).handle((result, error) -> {
+            if (error!=null) {
+                return CompletableFuture.<Void>failedFuture(new BatchPrintException(index, labelsSent, toIOException(error)));
+            }
+            int sent = labelsSent + batch.size();
+            if (listener!=null && !listener.batchSent(index, sent) && index+1 < batches.size()) {
+                return CompletableFuture.<Void>failedFuture(new BatchPrintException(index+1, sent,
+                        new InterruptedIOException("Printing was cancelled.")));
+            }
+            return printAsync(batches, listener, index+1, sent);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Gets the {@code IOException} describing why an asynchronous request failed.
+     * @param error the exception with which a future completed
+     * @return the underlying {@code IOException}, or a new one wrapping the given exception
+     */
+    private static IOException toIOException(Throwable error) {
+        if (error instanceof CompletionException && error.getCause()!=null) {
+            error = error.getCause();
+        }
+        if (error instanceof IOException) {
+            return (IOException) error;
+        }
+        return new IOException(error);
+    }
+
+    /**
+     * Gets the {@code HttpClient} used for asynchronous requests, creating it if necessary.
+     * The client prefers HTTP/2, falling back to HTTP/1.1 if the server does not support it.
+     * @return the http client for this instance
+     */
+    private synchronized HttpClient getHttpClient() {
+        if (httpClient==null) {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2);
+            if (proxy!=null) {
+                builder.proxy(ProxySelector.of((InetSocketAddress) proxy.address()));
+            } else if (ProxySelector.getDefault()!=null) {
+                builder.proxy(ProxySelector.getDefault());
+            }
+            if (connectTimeout!=null) {
+                builder.connectTimeout(connectTimeout);
+            }
+            httpClient = builder.build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * A publisher for the body of an asynchronous request.
+     * Each subscriber gets a {@link BodySubscription}, and the request is written to it on a
+     * {@link #BODY_WRITERS body writer} thread, compressed if required.
+     * The length of the body is not known in advance, so it is sent with chunked transfer encoding.
+     */
+    private static class StreamingBody implements HttpRequest.BodyPublisher {
+        private final PrintRequest request;
+        private final boolean compress;
+        private final PrintMetrics.Sample sample;
+
+        StreamingBody(PrintRequest request, boolean compress, PrintMetrics.Sample sample) {
+            this.request = request;
+            this.compress = compress;
+            this.sample = sample;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            BodySubscription subscription = new BodySubscription(subscriber);
+            subscriber.onSubscribe(subscription);
+            BODY_WRITERS.execute(() -> subscription.writeBody(request, compress, sample));
+        }
+    }
+
+    /**
+     * An output stream that passes what is written to it on to a subscriber, as buffers of at most
+     * {@link #BUFFER_SIZE} bytes. Writing blocks until the subscriber has asked for more, so the body is
+     * only written as fast as it can be sent. If the subscriber cancels, writing fails.
+     */
+    private static class BodySubscription extends OutputStream implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        private boolean cancelled;
+
+        BodySubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Non-positive request: "+n));
+                return;
+            }
+            synchronized (this) {
+                demand = (demand + n < 0 ? Long.MAX_VALUE : demand + n);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        /**
+         * Writes the request to this stream, and tells the subscriber when it is complete or has failed.
+         * The size recorded in the sample is the number of bytes of the (possibly compressed) body.
+         */
+        void writeBody(PrintRequest request, boolean compress, PrintMetrics.Sample sample) {
+            CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(this, BUFFER_SIZE));
+            try {
+                request.writeTo(compress ? new GZIPOutputStream(out, BUFFER_SIZE) : out);
+            } catch (IOException | RuntimeException e) {
+                if (!isCancelled()) {
+                    subscriber.onError(new IOException("Failed to send print request.",
+                            e instanceof JsonException && e.getCause()!=null ? e.getCause() : e));
+                }
+                return;
+            }
+            sample.written(out.getCount());
+            subscriber.onComplete();
+        }
+
+        private synchronized boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, BUFFER_SIZE);
+                awaitDemand();
+                subscriber.onNext(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + chunk)));
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        /**
+         * Waits until the subscriber asks for another buffer, and counts it as sent.
+         * @exception IOException the subscriber has cancelled, or the thread was interrupted
+         */
+        private synchronized void awaitDemand() throws IOException {
+            try {
+                while (demand==0 && !cancelled) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending print request.");
+            }
+            if (cancelled) {
+                throw new IOException("The print request was cancelled while it was being sent.");
+            }
+            --demand;
         }
     }
 
     /**
      * Post the given request over the given connection.
+     * The request body is streamed to the connection as it is serialised, using chunked transfer encoding.
+     * If the request has been {@link PrintRequest#prepare prepared} and is not compressed, its prepared body
+     * is written to the connection as it is, with its length given in advance.
+     * If {@code compress} is true, the body is compressed with gzip as it is streamed.
+     * Each stage of the request is reported to the given sample; if the request succeeds, the sample is recorded.
+     * The size recorded is the number of bytes of the (possibly compressed) body.
      * @param request the request to send
      * @param connection an open connection
+     * @param sample the sample timing this request
+     * @param compress whether to compress the request body
      * @exception IOException there was a problem sending the print request, or if
      *            the response code was not in the 2## range.
      */
-    private void post(PrintRequest request, HttpURLConnection connection) throws IOException {
+    private void post(PrintRequest request, HttpURLConnection connection, PrintMetrics.Sample sample,
+                      boolean compress) throws IOException {
+        byte[] prepared = (compress ? null : request.getPreparedBody());
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
-        connection.setRequestProperty("Content-Type", "application/json");
+        if (prepared!=null) {
+            connection.setFixedLengthStreamingMode(prepared.length);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
         connection.setRequestProperty("Accept", "application/json");
+        if (compress) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        if (request.getWarmUpLabels() > 0) {
+            connection.setRequestProperty(PrintRequest.WARM_UP_LABELS_HEADER, String.valueOf(request.getWarmUpLabels()));
+        }
         connection.connect();
-        try (OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream())) {
-            out.write(request.toString());
-            out.flush();
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
-                throw new IOException("PrintMyBarcode could not be reached.");
-            }
-            if (responseCode < 200 || responseCode >= 300) {
-                throw new IOException("Unexpected response code from PrintMyBarcode: "+responseCode
-                        + "\n" + getResponseString(connection.getErrorStream()));
+        sample.connected();
+        CountingOutputStream out = new CountingOutputStream(connection.getOutputStream());
+        try (out) {
+            request.writeTo(compress ? new GZIPOutputStream(out, BUFFER_SIZE) : out);
+        } catch (JsonException e) {
+            throw new IOException("Failed to send print request.", e.getCause()!=null ? e.getCause() : e);
+        }
+        sample.written(out.getCount());
+        int responseCode = connection.getResponseCode();
+        sample.firstByte();
+        if (!isSuccess(responseCode)) {
+            throw responseError(responseCode, getResponseString(connection.getErrorStream()));
+        }
+        drain(connection.getInputStream());
+        sample.succeeded(responseCode);
+    }
+
+    /**
+     * An output stream that counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return this.count;
+        }
+    }
+
+    /**
+     * Is the given response code in the 2## range?
+     * @param responseCode an HTTP response code
+     * @return true if the code indicates success, otherwise false
+     */
+    private static boolean isSuccess(int responseCode) {
+        return (responseCode >= 200 && responseCode < 300);
+    }
+
+    /**
+     * Creates an exception describing an unsuccessful response from PrintMyBarcode.
+     * @param responseCode the HTTP response code received
+     * @param responseBody the body of the response (may be null)
+     * @return an exception describing the problem
+     */
+    private static PMBResponseException responseError(int responseCode, String responseBody) {
+        if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+            return new PMBResponseException("PrintMyBarcode could not be reached.", responseCode);
+        }
+        return new PMBResponseException("Unexpected response code from PrintMyBarcode: "+responseCode
+                + "\n" + responseBody, responseCode);
+    }
+
+    /**
+     * Reads and discards the remainder of the given stream, and closes it.
+     * A response that has been read to the end lets the underlying connection be reused.
+     * @param is the stream to drain
+     * @exception IOException there was a communication problem
+     */
+    private static void drain(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+                // discard
             }
         }
     }
@@ -116,19 +684,25 @@ public class PMBClient {
     }
 
     /**
-     * Opens a new connection from the url specified by this instance's location string.
+     * Opens a connection from the url specified by this instance's location.
      * If a proxy was specified, it will be included in the connection.
+     * If there is an idle kept-alive socket to the same destination, it will be reused.
      * @return an open {@code HttpURLConnection}.
      * @exception IOException there was a problem opening the connection
      */
     private HttpURLConnection openConnection() throws IOException {
-        URL url = new URL(this.location);
         URLConnection con;
         if (proxy==null) {
             con = url.openConnection();
         } else {
             con = url.openConnection(proxy);
         }
+        if (connectTimeout!=null) {
+            con.setConnectTimeout((int) connectTimeout.toMillis());
+        }
+        if (readTimeout!=null) {
+            con.setReadTimeout((int) readTimeout.toMillis());
+        }
         return (HttpURLConnection) con;
     }
 }
@@ -0,0 +1,38 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.IOException;
+
+/**
+ * An exception indicating that PrintMyBarcode responded to a request with an unsuccessful response code.
+ * @author dr6
+ */
+public class PMBResponseException extends IOException {
+    private final int responseCode;
+
+    /**
+     * Constructs an exception for the given response code.
+     * @param message the detail message
+     * @param responseCode the HTTP response code received
+     */
+    public PMBResponseException(String message, int responseCode) {
+        super(message);
+        this.responseCode = responseCode;
+    }
+
+    /**
+     * Gets the HTTP response code received from PrintMyBarcode
+     */
+    public int getResponseCode() {
+        return this.responseCode;
+    }
+
+    /**
+     * Could sending the same request again succeed?
+     * This is true if PrintMyBarcode could not be reached, or was unavailable or overloaded;
+     * and false if it rejected the request itself.
+     * @return true if the request may be retried, otherwise false
+     */
+    public boolean isRetryable() {
+        return (responseCode==404 || responseCode==408 || responseCode==429 || responseCode >= 500);
+    }
+}
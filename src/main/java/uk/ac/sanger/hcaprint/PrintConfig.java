@@ -0,0 +1,491 @@
+package uk.ac.sanger.hcaprint;
+
+import uk.ac.sanger.hcaprint.PrintRequest.Field;
+
+import java.net.*;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * The application's config, parsed and checked once when the application starts.
+ * A {@code PrintConfig} is built from the loaded properties (including any command line overrides),
+ * and is immutable, so it can be shared by everything that prints.
+ * If the properties are invalid, every problem found is reported in a single {@link ConfigException}.
+ * <p>The properties used are:
+ * <ul>
+ *     <li>{@code pmb_url} (required) where PrintMyBarcode receives print requests</li>
+ *     <li>{@code template_id} (required) the label template id</li>
+ *     <li>{@code printers} a comma-separated list of printer names</li>
+ *     <li>{@code proxy} an optional proxy, as {@code host:port}</li>
+ *     <li>{@code field_name}, {@code field_barcode}, {@code field_date} the names of the label fields</li>
+ *     <li>{@code warm_up}, {@code compress_requests}, {@code print_history} boolean options</li>
+ *     <li>{@code batch_size} the maximum number of labels in each request; 0 for no limit</li>
+ *     <li>{@code connect_timeout}, {@code read_timeout}, {@code retry_initial_delay}, {@code retry_max_delay},
+ *     {@code metrics_flush_interval} durations in seconds; 0 for none</li>
+ *     <li>{@code retry_max_attempts} the number of times a queued request is tried before it is given up
+ *     (default 50)</li>
+ *     <li>{@code metrics_file}, {@code history_file}, {@code queue_file} optional file locations</li>
+ *     <li>{@code validate_barcode_pattern}, {@code validate_date_length} etc. rules that labels must satisfy,
+ *     as described in {@link LabelValidator}</li>
+ *     <li>{@code block_invalid} whether labels that break the rules must be left out of prints (default true)</li>
+ *     <li>{@code rate_limit} the most labels per second to send to each printer; 0 (the default) for no limit</li>
+ *     <li>{@code rate_limit.<printer>} the most labels per second to send to the named printer, overriding
+ *     {@code rate_limit}</li>
+ *     <li>{@code rate_burst} how many labels may be sent at once to a printer that has been idle</li>
+ *     <li>{@code gateway_port} the port on which to run as a {@link PrintGateway}; 0 (the default) to run normally</li>
+ *     <li>{@code gateway_bind} the address the gateway listens on; the loopback address by default,
+ *     or e.g. {@code 0.0.0.0} for every interface</li>
+ *     <li>{@code gateway_window_millis} how long the gateway waits for requests to combine, in milliseconds</li>
+ * </ul>
+ * Other properties (such as those for the command line printer) can be read with {@link #getProperty}.
+ * @author dr6
+ */
+public class PrintConfig {
+    /** How long the gateway waits for requests to combine, if the config does not say */
+    private static final int DEFAULT_GATEWAY_WINDOW_MILLIS = 200;
+
+    private final Properties properties;
+    private final URL pmbUrl;
+    private final Proxy proxy;
+    private final int templateId;
+    private final Map<Field, String> fieldNames;
+    private final List<String> printers;
+    private final boolean warmUp;
+    private final boolean compressRequests;
+    private final boolean printHistory;
+    private final int batchSize;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final Duration retryInitialDelay;
+    private final Duration retryMaxDelay;
+    private final int retryMaxAttempts;
+    private final Duration metricsFlushInterval;
+    private final Map<String, Path> files;
+    private final LabelValidator validator;
+    private final boolean blockInvalid;
+    private final Map<String, Double> rateLimits;
+    private final int rateBurst;
+    private final int gatewayPort;
+    private final InetAddress gatewayBind;
+    private final Duration gatewayWindow;
+
+    /**
+     * Parses and checks the given properties.
+     * The properties are copied, so later changes to them do not affect the config.
+     * @param properties the application's properties
+     * @exception ConfigException the properties are invalid
+     */
+    public PrintConfig(Properties properties) throws ConfigException {
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+        List<String> problems = new ArrayList<>();
+
+        this.pmbUrl = parseUrl(getProperty("pmb_url", ""), problems);
+        this.templateId = parseTemplateId(getProperty("template_id", ""), problems);
+        Proxy proxy = null;
+        try {
+            proxy = parseProxy(getProperty("proxy", ""));
+        } catch (IllegalArgumentException e) {
+            problems.add(e.getMessage());
+        }
+        this.proxy = proxy;
+
+        Map<Field, String> fieldNames = new EnumMap<>(Field.class);
+        for (Field field : Field.values()) {
+            String value = getProperty(field.propertyName(), "");
+            if (!value.isEmpty()) {
+                fieldNames.put(field, value);
+            }
+        }
+        this.fieldNames = Collections.unmodifiableMap(fieldNames);
+        this.printers = Arrays.stream(getProperty("printers", "").split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toUnmodifiableList());
+        if (printers.isEmpty() && getProperty("printer", "").isEmpty()) {
+            problems.add("No printers are configured.");
+        }
+
+        this.warmUp = Boolean.parseBoolean(getProperty("warm_up", ""));
+        this.compressRequests = Boolean.parseBoolean(getProperty("compress_requests", ""));
+        this.printHistory = Boolean.parseBoolean(getProperty("print_history", "true"));
+        this.batchSize = parseNonNegative("batch_size", problems);
+        this.connectTimeout = parseDuration("connect_timeout", problems);
+        this.readTimeout = parseDuration("read_timeout", problems);
+        this.retryInitialDelay = parseDuration("retry_initial_delay", problems);
+        this.retryMaxDelay = parseDuration("retry_max_delay", problems);
+        this.retryMaxAttempts = parseNonNegative("retry_max_attempts", problems);
+        this.metricsFlushInterval = parseDuration("metrics_flush_interval", problems);
+
+        this.validator = LabelValidator.fromConfig(key -> getProperty(key, ""), problems);
+        this.blockInvalid = Boolean.parseBoolean(getProperty("block_invalid", "true"));
+
+        Map<String, Double> rateLimits = new HashMap<>();
+        for (String key : this.properties.stringPropertyNames()) {
+            if (key.equals("rate_limit") || key.startsWith("rate_limit.")) {
+                String printer = key.substring(Math.min(key.length(), "rate_limit.".length()));
+                rateLimits.put(printer, parseRate(key, problems));
+            }
+        }
+        this.rateLimits = Collections.unmodifiableMap(rateLimits);
+        this.rateBurst = parseNonNegative("rate_burst", problems);
+
+        this.gatewayPort = parseNonNegative("gateway_port", problems);
+        if (gatewayPort > 0xffff) {
+            problems.add("Invalid gateway_port: "+gatewayPort);
+        }
+        this.gatewayBind = parseAddress("gateway_bind", problems);
+        String window = getProperty("gateway_window_millis", "");
+        this.gatewayWindow = Duration.ofMillis(window.isEmpty() ? DEFAULT_GATEWAY_WINDOW_MILLIS
+                : parseNonNegative("gateway_window_millis", problems));
+
+        Map<String, Path> files = new HashMap<>();
+        for (String key : List.of("metrics_file", "history_file", "queue_file")) {
+            String value = getProperty(key, "");
+            if (!value.isEmpty()) {
+                try {
+                    files.put(key, Paths.get(value));
+                } catch (InvalidPathException e) {
+                    problems.add("Invalid "+key+": "+value);
+                }
+            }
+        }
+        this.files = files;
+
+        if (!problems.isEmpty()) {
+            throw new ConfigException(problems);
+        }
+    }
+
+    private static URL parseUrl(String location, List<String> problems) {
+        if (location.isEmpty()) {
+            problems.add("Missing config for PrintMyBarcode location (pmb_url).");
+            return null;
+        }
+        try {
+            return new URL(location);
+        } catch (MalformedURLException e) {
+            problems.add("Invalid PrintMyBarcode location: "+location);
+            return null;
+        }
+    }
+
+    private static int parseTemplateId(String string, List<String> problems) {
+        if (string.isEmpty()) {
+            problems.add("Missing config for template id (template_id).");
+            return 0;
+        }
+        try {
+            return Integer.parseInt(string);
+        } catch (NumberFormatException e) {
+            problems.add("Invalid template id: "+string);
+            return 0;
+        }
+    }
+
+    /**
+     * Gets a {@code Proxy} object based on the given string.
+     * If the string is null or has no content, null is returned.
+     * If given, the string should be of the form {@code "location:port"}.
+     * @param proxyString the string describing the proxy, or null (or a blank string) if no proxy is required
+     * @return a proxy, or null
+     * @exception IllegalArgumentException the string could not be understood
+     */
+    static Proxy parseProxy(String proxyString) {
+        if (proxyString==null) {
+            return null;
+        }
+        proxyString = proxyString.trim();
+        if (proxyString.isEmpty()) {
+            return null;
+        }
+        int c = proxyString.indexOf(':');
+        int port = -1;
+        if (c > 0) {
+            try {
+                port = Integer.parseInt(proxyString.substring(c+1));
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        if (port < 0 || port > 0xffff) {
+            throw new IllegalArgumentException("Invalid proxy string: "+proxyString);
+        }
+        return new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxyString.substring(0, c), port));
+    }
+
+    /**
+     * Parses a property giving a network address or host name.
+     * If the property is missing, the loopback address is used.
+     * Unknown hosts are added to the given list of problems.
+     */
+    private InetAddress parseAddress(String key, List<String> problems) {
+        String string = getProperty(key, "");
+        if (string.isEmpty()) {
+            return InetAddress.getLoopbackAddress();
+        }
+        try {
+            return InetAddress.getByName(string);
+        } catch (UnknownHostException e) {
+            problems.add("Invalid "+key+": "+string);
+            return null;
+        }
+    }
+
+    /**
+     * Parses a non-negative integer property.
+     * @return the value of the property, or zero if it is missing or invalid
+     */
+    private int parseNonNegative(String key, List<String> problems) {
+        String string = getProperty(key, "");
+        if (string.isEmpty()) {
+            return 0;
+        }
+        try {
+            int value = Integer.parseInt(string);
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        problems.add("Invalid "+key+": "+string);
+        return 0;
+    }
+
+    /**
+     * Parses a rate limit property, specified as a number of labels per second.
+     * @return the rate, or zero if it is missing or invalid
+     */
+    private double parseRate(String key, List<String> problems) {
+        String string = getProperty(key, "");
+        if (string.isEmpty()) {
+            return 0;
+        }
+        try {
+            double value = Double.parseDouble(string);
+            if (value >= 0 && Double.isFinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        problems.add("Invalid "+key+": "+string);
+        return 0;
+    }
+
+    /**
+     * Parses a duration property, specified as a number of seconds.
+     * @return the duration, or null if it is missing, invalid or zero
+     */
+    private Duration parseDuration(String key, List<String> problems) {
+        int seconds = parseNonNegative(key, problems);
+        return (seconds > 0 ? Duration.ofSeconds(seconds) : null);
+    }
+
+    /**
+     * Gets the trimmed value of a property.
+     * @param key the name of the property
+     * @param defaultValue the value to return if the property is not set
+     * @return the trimmed value of the property, or the default value
+     */
+    public String getProperty(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return (value==null ? defaultValue : value.trim());
+    }
+
+    /**
+     * Gets a copy of the properties this config was built from.
+     */
+    public Properties getProperties() {
+        Properties copy = new Properties();
+        copy.putAll(this.properties);
+        return copy;
+    }
+
+    /**
+     * Gets the url to which print requests should be posted.
+     */
+    public URL getPmbUrl() {
+        return this.pmbUrl;
+    }
+
+    /**
+     * Gets the proxy through which to connect to PrintMyBarcode, or null if there is none.
+     */
+    public Proxy getProxy() {
+        return this.proxy;
+    }
+
+    /**
+     * Gets the label template id.
+     */
+    public int getTemplateId() {
+        return this.templateId;
+    }
+
+    /**
+     * Gets the names of the fields to supply in the label data.
+     * @return an unmodifiable map from each enabled field to its name
+     */
+    public Map<Field, String> getFieldNames() {
+        return this.fieldNames;
+    }
+
+    /**
+     * Gets the names of the configured printers.
+     * @return an unmodifiable list of printer names, which may be empty
+     */
+    public List<String> getPrinters() {
+        return this.printers;
+    }
+
+    /**
+     * Should a warm-up label be printed at the start of each print?
+     */
+    public boolean isWarmUp() {
+        return this.warmUp;
+    }
+
+    /**
+     * Should print requests be compressed with gzip?
+     */
+    public boolean isCompressRequests() {
+        return this.compressRequests;
+    }
+
+    /**
+     * Should the barcodes printed be recorded in a {@link PrintHistory}?
+     */
+    public boolean isPrintHistory() {
+        return this.printHistory;
+    }
+
+    /**
+     * Gets the maximum number of labels to send in each print request,
+     * or zero if the labels should not be split into batches.
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Gets the time allowed to connect to PrintMyBarcode, or null for no timeout.
+     */
+    public Duration getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Gets the time allowed to wait for a response from PrintMyBarcode, or null for no timeout.
+     */
+    public Duration getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * Gets the delay before the first retry of a queued request, or null if it is not configured.
+     */
+    public Duration getRetryInitialDelay() {
+        return this.retryInitialDelay;
+    }
+
+    /**
+     * Gets the longest delay between retries of a queued request, or null if it is not configured.
+     */
+    public Duration getRetryMaxDelay() {
+        return this.retryMaxDelay;
+    }
+
+    /**
+     * Gets the number of times a queued request should be tried before it is given up, or 0 if it is not configured.
+     */
+    public int getRetryMaxAttempts() {
+        return this.retryMaxAttempts;
+    }
+
+    /**
+     * Gets how often the print metrics should be written to their log file, or null if they should not be.
+     */
+    public Duration getMetricsFlushInterval() {
+        return this.metricsFlushInterval;
+    }
+
+    /**
+     * Gets the validator for the rules that labels should satisfy.
+     * @return the validator, which has no rules if none are configured
+     */
+    public LabelValidator getValidator() {
+        return this.validator;
+    }
+
+    /**
+     * Must labels that break the {@link #getValidator validation rules} be left out of prints?
+     */
+    public boolean isBlockInvalid() {
+        return this.blockInvalid;
+    }
+
+    /**
+     * Gets the most labels per second that should be sent to the given printer.
+     * @param printer the name of the printer
+     * @return the rate limit in labels per second, or zero if the printer is not limited
+     */
+    public double getRateLimit(String printer) {
+        Double rate = rateLimits.get(printer);
+        if (rate==null) {
+            rate = rateLimits.get("");
+        }
+        return (rate!=null ? rate : 0);
+    }
+
+    /**
+     * Gets the number of labels that may be sent at once to a rate-limited printer that has been idle,
+     * or zero if it is not configured.
+     */
+    public int getRateBurst() {
+        return this.rateBurst;
+    }
+
+    /**
+     * Gets the port on which the application should run as a {@link PrintGateway},
+     * or zero if it should run normally.
+     */
+    public int getGatewayPort() {
+        return this.gatewayPort;
+    }
+
+    /**
+     * Gets the address on which the {@link PrintGateway} should listen.
+     * @return the address given in the config, or the loopback address if none is given
+     */
+    public InetAddress getGatewayBind() {
+        return this.gatewayBind;
+    }
+
+    /**
+     * Gets how long the {@link PrintGateway} waits after a request for more requests to combine it with.
+     */
+    public Duration getGatewayWindow() {
+        return this.gatewayWindow;
+    }
+
+    /**
+     * Gets the location of a file given in the config.
+     * @param key the config key for the file, e.g. {@code "queue_file"}
+     * @param defaultName the name of the file to use in the {@code .hcaprint} directory in the user's home directory,
+     *        if the config does not give one; or null for no default
+     * @return the path of the file, or null if the config does not give one and there is no default
+     */
+    public Path getFile(String key, String defaultName) {
+        Path path = files.get(key);
+        if (path==null && defaultName!=null) {
+            path = Paths.get(System.getProperty("user.home"), ".hcaprint", defaultName);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,401 @@
+package uk.ac.sanger.hcaprint;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A print gateway that the applications on many benches can send their print requests to, instead of
+ * sending them directly to PrintMyBarcode.
+ * The gateway combines the requests for the same printer and template that arrive within a short
+ * {@link PrintConfig#getGatewayWindow window} into a single larger request to PrintMyBarcode, so that when
+ * many benches print at once, PrintMyBarcode receives a few large requests rather than many small ones.
+ * <p>The gateway accepts requests in the same JSON format as PrintMyBarcode (see {@link PrintRequest}),
+ * so an application uses it just by setting its {@code pmb_url} to the gateway's address.
+ * Each request is answered when the combined request it was part of has been sent, with PrintMyBarcode's
+ * response to the combined request. If PrintMyBarcode rejects the combined request in a way that retrying will
+ * not fix (e.g. because one of its labels is invalid), the requests in it are sent again separately, so that
+ * only the request at fault fails. If the combined request fails in a way that might succeed later, every
+ * request in it fails, and each application retries its own request as usual.
+ * A combined request is sent early if it reaches the configured {@code batch_size}.
+ * Warm-up labels (marked by the {@value PrintRequest#WARM_UP_LABELS_HEADER} header) are only printed once at
+ * the start of each combined request.
+ * The combined requests are sent through a {@link PrintScheduler}, so they are subject to the printers' rate limits.
+ * <p>The gateway is run from the application jar, with no user interface, by giving a {@code gateway_port},
+ * e.g. {@code java -jar hcaprint.jar gateway_port=9393 gateway_bind=0.0.0.0}. It listens on the loopback
+ * address unless a {@code gateway_bind} address is given. Its own {@code pmb_url} is where PrintMyBarcode
+ * receives requests, and the {@code field_} names in its config should match those used by the applications.
+ * Requests bigger than {@link #MAX_REQUEST_BYTES} are refused, and requests are handled by a limited number of
+ * threads.
+ * @author dr6
+ */
+public class PrintGateway implements Closeable {
+    /** The largest request body the gateway accepts, in bytes (after decompression) */
+    public static final int MAX_REQUEST_BYTES = 32 << 20;
+    /** The number of threads reading requests */
+    private static final int SERVER_THREADS = 8;
+    /** The number of requests that may wait for a thread to read them */
+    private static final int SERVER_QUEUE_SIZE = 256;
+    private static final int HTTP_PAYLOAD_TOO_LARGE = 413;
+
+    private final PrintConfig config;
+    private final PrintScheduler printScheduler;
+    private final long windowNanos;
+    private final int maxLabels;
+    private final Map<List<Object>, Pending> pending = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    /**
+     * Constructs a gateway that sends the requests it receives to the given client, after combining them.
+     * The gateway does not receive requests until it is {@link #start started}.
+     * @param config the config giving the window, the batch size and the names of the label fields
+     * @param pmb the client for sending the combined requests to PrintMyBarcode
+     */
+    public PrintGateway(PrintConfig config, PMBClient pmb) {
+        this.config = config;
+        this.printScheduler = new PrintScheduler(pmb, config);
+        this.windowNanos = config.getGatewayWindow().toNanos();
+        this.maxLabels = config.getBatchSize();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gateway-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts receiving requests on the given address and port.
+     * The requests are read by a fixed number of threads; if too many requests are waiting for them,
+     * the server's own thread reads the next one, so that no more are accepted until it has.
+     * @param address the address to listen on
+     * @param port the port to listen on
+     * @exception IOException the server could not be started
+     */
+    public synchronized void start(InetAddress address, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        serverExecutor = new ThreadPoolExecutor(SERVER_THREADS, SERVER_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SERVER_QUEUE_SIZE), r -> {
+                    Thread thread = new Thread(r, "gateway-http");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(serverExecutor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Adds a request to be sent to PrintMyBarcode, combined with any others for the same printer and template.
+     * If there is no pending request to combine it with, it is sent once the window has passed, along with
+     * any requests that arrive in the meantime.
+     * @param request the request to send
+     * @return a future result of the combined request that the given request was sent in,
+     *         or of the given request on its own if the combined request was rejected
+     */
+    public CompletableFuture<PrintResult> submit(PrintRequest request) {
+        List<Pending> ready = new ArrayList<>(2);
+        CompletableFuture<PrintResult> result;
+        synchronized (pending) {
+            final List<Object> key = List.of(request.getPrinter(), request.getTemplateId());
+            Pending combined = pending.get(key);
+            if (combined!=null && maxLabels > 0 && combined.labels.size() + request.size() > maxLabels) {
+                pending.remove(key);
+                ready.add(combined);
+                combined = null;
+            }
+            if (combined==null) {
+                final Pending created = new Pending(request);
+                created.flush = scheduler.schedule(() -> sendIfPending(key, created), windowNanos, TimeUnit.NANOSECONDS);
+                pending.put(key, created);
+                combined = created;
+            }
+            result = combined.add(request);
+            if (maxLabels > 0 && combined.labels.size() >= maxLabels) {
+                pending.remove(key);
+                ready.add(combined);
+            }
+        }
+        ready.forEach(this::send);
+        return result;
+    }
+
+    /**
+     * Sends the given combined request if it is still waiting to be sent.
+     */
+    private void sendIfPending(List<Object> key, Pending combined) {
+        synchronized (pending) {
+            if (!pending.remove(key, combined)) {
+                return;
+            }
+        }
+        send(combined);
+    }
+
+    /**
+     * Sends a combined request to PrintMyBarcode, and completes the results of its parts when it has been sent.
+     * If PrintMyBarcode rejects the combined request, and retrying will not help, each part is sent on its own.
+     */
+    private void send(Pending combined) {
+        if (combined.flush!=null) {
+            combined.flush.cancel(false);
+        }
+        PrintRequest request = new PrintRequest(combined.labels, combined.printer, combined.templateId,
+                config.getFieldNames());
+        request.setWarmUpLabels(combined.warmUpLabels);
+        printScheduler.printAsync(request).whenComplete((result, error) -> {
+            if (error==null) {
+                combined.parts.forEach(part -> part.result.complete(result));
+            } else if (combined.parts.size() > 1 && isRejection(error)) {
+                System.err.println("A combined request of "+combined.parts.size()+" requests for "+combined.printer
+                        +" was rejected; sending them separately.");
+                for (Part part : combined.parts) {
+                    printScheduler.printAsync(part.request).whenComplete((partResult, partError) -> {
+                        if (partError==null) {
+                            part.result.complete(partResult);
+                        } else {
+                            part.result.completeExceptionally(partError);
+                        }
+                    });
+                }
+            } else {
+                combined.parts.forEach(part -> part.result.completeExceptionally(error));
+            }
+        });
+    }
+
+    /**
+     * Does the given failure mean that PrintMyBarcode rejected the request itself, so that retrying it will not help?
+     */
+    private static boolean isRejection(Throwable error) {
+        if (error instanceof CompletionException && error.getCause()!=null) {
+            error = error.getCause();
+        }
+        return (error instanceof PMBResponseException && !((PMBResponseException) error).isRetryable());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, errorBody("Method not allowed"));
+            return;
+        }
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength!=null && isTooLarge(contentLength)) {
+            respond(exchange, HTTP_PAYLOAD_TOO_LARGE, errorBody("Print request too large"));
+            return;
+        }
+        PrintRequest request;
+        try {
+            String body = readBody(exchange);
+            if (body==null) {
+                respond(exchange, HTTP_PAYLOAD_TOO_LARGE, errorBody("Print request too large"));
+                return;
+            }
+            request = PrintRequest.fromJson(body, config);
+            request.setWarmUpLabels(getWarmUpLabels(exchange, request));
+        } catch (IOException | JsonException | ClassCastException | NullPointerException e) {
+            respond(exchange, 422, errorBody("Invalid print request"));
+            return;
+        }
+        submit(request).whenComplete((result, error) -> {
+            try {
+                if (error==null) {
+                    String body = result.getResponseBody();
+                    respond(exchange, result.getResponseCode(), body!=null ? body : "{}");
+                    return;
+                }
+                if (error instanceof CompletionException && error.getCause()!=null) {
+                    error = error.getCause();
+                }
+                int status = (error instanceof PMBResponseException
+                        ? ((PMBResponseException) error).getResponseCode() : 502);
+                respond(exchange, status, errorBody(error.getMessage()!=null ? error.getMessage() : error.toString()));
+            } catch (IOException e) {
+                System.err.println("Could not send response to "+exchange.getRemoteAddress()+": "+e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Is the given content length bigger than the gateway accepts?
+     */
+    private static boolean isTooLarge(String contentLength) {
+        try {
+            return (Long.parseLong(contentLength.trim()) > MAX_REQUEST_BYTES);
+        } catch (NumberFormatException e) {
+            return false; // the body is still checked as it is read
+        }
+    }
+
+    /**
+     * Reads the body of a request, which may be compressed with gzip.
+     * @return the body, or null if it is bigger than {@link #MAX_REQUEST_BYTES} (once decompressed)
+     */
+    private static String readBody(HttpExchange exchange) throws IOException {
+        boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream in = (gzip ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody())) {
+            byte[] bytes = in.readNBytes(MAX_REQUEST_BYTES + 1);
+            if (bytes.length > MAX_REQUEST_BYTES) {
+                return null;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Gets the number of warm-up labels at the start of a request, from the
+     * {@value PrintRequest#WARM_UP_LABELS_HEADER} header.
+     * @exception JsonException the header is not a number of labels in the request
+     */
+    private static int getWarmUpLabels(HttpExchange exchange, PrintRequest request) {
+        String header = exchange.getRequestHeaders().getFirst(PrintRequest.WARM_UP_LABELS_HEADER);
+        if (header==null) {
+            return 0;
+        }
+        try {
+            int warmUpLabels = Integer.parseInt(header.trim());
+            if (warmUpLabels >= 0 && warmUpLabels <= request.size()) {
+                return warmUpLabels;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new JsonException("Invalid "+PrintRequest.WARM_UP_LABELS_HEADER+": "+header);
+    }
+
+    private static String errorBody(String message) {
+        return Json.createObjectBuilder()
+                .add("errors", Json.createArrayBuilder().add(Json.createObjectBuilder().add("title", message)))
+                .build().toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stops receiving requests, and sends any requests that are waiting to be combined.
+     */
+    @Override
+    public synchronized void close() {
+        List<Pending> remaining;
+        synchronized (pending) {
+            remaining = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        remaining.forEach(this::send);
+        if (server!=null) {
+            server.stop(1);
+            server = null;
+            serverExecutor.shutdown();
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * Starts a gateway on the port given in the config, which runs until the application is stopped.
+     * The gateway's requests to PrintMyBarcode are logged to the {@code metrics_file}, if one is given.
+     * @param config the application's config
+     * @return zero if the gateway was started; otherwise the exit status for the application
+     */
+    public static int run(PrintConfig config) {
+        PMBClient pmb = new PMBClient(config);
+        PrintMetrics metrics = new PrintMetrics();
+        pmb.setMetrics(metrics);
+        Path metricsFile = config.getFile("metrics_file", null);
+        if (metricsFile!=null) {
+            Duration interval = config.getMetricsFlushInterval();
+            try {
+                metrics.startLog(metricsFile, interval!=null ? interval : Duration.ofMinutes(1));
+            } catch (IOException e) {
+                System.err.println("Could not log print metrics to "+metricsFile+": "+e.getMessage());
+            }
+        }
+        PrintGateway gateway = new PrintGateway(config, pmb);
+        try {
+            gateway.start(config.getGatewayBind(), config.getGatewayPort());
+        } catch (IOException e) {
+            System.err.println("Could not start the print gateway on "+config.getGatewayBind().getHostAddress()
+                    +" port "+config.getGatewayPort()+": "+e.getMessage());
+            return 1;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            gateway.close();
+            try {
+                metrics.close();
+            } catch (IOException e) {
+                System.err.println("Could not write print metrics: "+e.getMessage());
+            }
+        }));
+        System.err.println("Print gateway listening on "+config.getGatewayBind().getHostAddress()
+                +" port "+config.getGatewayPort()+", sending to "+config.getPmbUrl());
+        return 0;
+    }
+
+    /**
+     * Requests for one printer and template, waiting to be sent together.
+     */
+    private static class Pending {
+        final String printer;
+        final int templateId;
+        final List<LabelData> labels = new ArrayList<>();
+        final List<Part> parts = new ArrayList<>();
+        int warmUpLabels;
+        ScheduledFuture<?> flush;
+
+        Pending(PrintRequest request) {
+            this.printer = request.getPrinter();
+            this.templateId = request.getTemplateId();
+        }
+
+        /**
+         * Adds the labels of a request. Its warm-up labels are left out, unless it is the first request.
+         * @return the future result of the request
+         */
+        CompletableFuture<PrintResult> add(PrintRequest request) {
+            List<LabelData> requestLabels = request.getLabels();
+            if (labels.isEmpty()) {
+                warmUpLabels = request.getWarmUpLabels();
+                labels.addAll(requestLabels);
+            } else {
+                labels.addAll(requestLabels.subList(request.getWarmUpLabels(), requestLabels.size()));
+            }
+            Part part = new Part(request);
+            parts.add(part);
+            return part.result;
+        }
+    }
+
+    /**
+     * One of the requests in a combined request, and its result.
+     */
+    private static class Part {
+        final PrintRequest request;
+        final CompletableFuture<PrintResult> result = new CompletableFuture<>();
+
+        Part(PrintRequest request) {
+            this.request = request;
+        }
+    }
+}
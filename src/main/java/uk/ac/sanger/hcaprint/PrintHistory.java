@@ -0,0 +1,261 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A record of the barcodes that have been printed, kept across sessions.
+ * <p>The history is an append-only log file with one barcode per line. When it is {@link #load loaded},
+ * the file is memory-mapped and scanned, and a 64-bit hash of each barcode is put in an in-memory
+ * open-addressing hash set, so checking whether a barcode has been printed takes constant time and
+ * does not touch the file. (Two different barcodes could in principle have the same 64-bit hash,
+ * but with even millions of barcodes the chance is negligible.)
+ * <p>Barcodes that are already in the history are not written to the file again.
+ * Barcodes can be recorded before (or while) the history is being loaded; they are merged with the
+ * loaded barcodes when loading finishes.
+ * <p>A {@code PrintHistory} may be shared between threads.
+ * @author dr6
+ */
+public class PrintHistory {
+    private static final int DECODE_BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private LongHashSet hashes = new LongHashSet();
+
+    /**
+     * Constructs a history recorded in the given file.
+     * Call {@link #load} to read the barcodes already in the file.
+     * @param file the path of the history file
+     */
+    public PrintHistory(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the barcodes in the history file. If the file does not exist, the history is empty.
+     * The file is scanned without holding any lock, so the history can be used while it is loading.
+     * @exception IOException the file could not be read
+     */
+    public void load() throws IOException {
+        LongHashSet loaded = new LongHashSet();
+        if (Files.exists(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Print history file is too large: "+file);
+                }
+                if (size > 0) {
+                    scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), loaded);
+                }
+            }
+        }
+        synchronized (this) {
+            loaded.addAll(hashes);
+            hashes = loaded;
+        }
+    }
+
+    /**
+     * Decodes the lines of the given buffer as UTF-8, adding the hash of each non-empty line to the given set.
+     * The text is decoded in chunks, and hashed as it is scanned, without creating strings.
+     * @param bytes the contents of the history file
+     * @param set the set to add hashes to
+     */
+    private static void scan(MappedByteBuffer bytes, LongHashSet set) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+        long hash = Hasher.START;
+        int length = 0;
+        boolean done = false;
+        while (!done) {
+            boolean endOfInput = !bytes.hasRemaining();
+            CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                decoder.flush(chars);
+                done = true;
+            }
+            chars.flip();
+            while (chars.hasRemaining()) {
+                char ch = chars.get();
+                if (ch=='\n' || ch=='\r') {
+                    if (length > 0) {
+                        set.add(Hasher.finish(hash));
+                    }
+                    hash = Hasher.START;
+                    length = 0;
+                } else {
+                    hash = Hasher.update(hash, ch);
+                    ++length;
+                }
+            }
+            chars.clear();
+        }
+        if (length > 0) {
+            set.add(Hasher.finish(hash));
+        }
+    }
+
+    /**
+     * Has the given barcode been printed?
+     * @param barcode a barcode (may be null)
+     * @return true if the barcode is in the history; false if it is not, or is null or empty
+     */
+    public synchronized boolean contains(String barcode) {
+        return (barcode!=null && !barcode.isEmpty() && hashes.contains(Hasher.hash(barcode)));
+    }
+
+    /**
+     * Records that the labels in the given request have been printed.
+     * Labels without a barcode, and the {@link PrintRequest#getWarmUpLabels warm-up labels}, are ignored.
+     * @param request a request that has been printed
+     * @exception IOException the history file could not be written
+     */
+    public void record(PrintRequest request) throws IOException {
+        List<LabelData> labels = request.getLabels();
+        record(labels.subList(request.getWarmUpLabels(), labels.size()));
+    }
+
+    /**
+     * Records that the given labels have been printed.
+     * Labels without a barcode are ignored.
+     * Barcodes that are already in the history are not written to the file again.
+     * @param labels labels that have been printed
+     * @exception IOException the history file could not be written
+     */
+    public synchronized void record(Collection<LabelData> labels) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (LabelData label : labels) {
+            String barcode = label.getBarcode();
+            if (barcode!=null && !barcode.isEmpty()
+                    && barcode.indexOf('\n') < 0 && barcode.indexOf('\r') < 0
+                    && hashes.add(Hasher.hash(barcode))) {
+                sb.append(barcode).append('\n');
+            }
+        }
+        if (sb.length() > 0) {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent!=null) {
+                Files.createDirectories(parent);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(sb));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct barcodes in the history.
+     */
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    /**
+     * A 64-bit hash of strings (FNV-1a over the chars, followed by a final mix), computed incrementally.
+     */
+    private static final class Hasher {
+        static final long START = 0xcbf29ce484222325L;
+        private static final long PRIME = 0x100000001b3L;
+
+        static long update(long hash, char ch) {
+            return (hash ^ ch) * PRIME;
+        }
+
+        static long finish(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return (hash==0 ? 1 : hash);
+        }
+
+        static long hash(String string) {
+            long hash = START;
+            for (int i = 0; i < string.length(); ++i) {
+                hash = update(hash, string.charAt(i));
+            }
+            return finish(hash);
+        }
+    }
+
+    /**
+     * An open-addressing hash set of nonzero longs, probed linearly.
+     */
+    private static final class LongHashSet {
+        private long[] table = new long[1024];
+        private int size;
+
+        boolean contains(long value) {
+            int mask = table.length - 1;
+            int slot = (int) value & mask;
+            while (table[slot]!=0) {
+                if (table[slot]==value) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * Adds a value to the set.
+         * @return true if the value was added; false if it was already in the set
+         */
+        boolean add(long value) {
+            int mask = table.length - 1;
+            int slot = (int) value & mask;
+            while (table[slot]!=0) {
+                if (table[slot]==value) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = value;
+            if (++size * 2 > table.length) {
+                resize();
+            }
+            return true;
+        }
+
+        void addAll(LongHashSet other) {
+            for (long value : other.table) {
+                if (value!=0) {
+                    add(value);
+                }
+            }
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        private void resize() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            int mask = table.length - 1;
+            for (long value : old) {
+                if (value!=0) {
+                    int slot = (int) value & mask;
+                    while (table[slot]!=0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot] = value;
+                }
+            }
+        }
+    }
+}
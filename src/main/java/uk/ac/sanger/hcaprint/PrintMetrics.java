@@ -0,0 +1,457 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Records how print requests to PrintMyBarcode perform, for each printer.
+ * <p>For each request, the client reports the time taken to connect, to write the request body,
+ * to receive the first byte of the response, and in total; the size of the request body; the number of labels;
+ * and the response code (or the failure). Requests that are retried later are also counted.
+ * <p>The metrics can be read as {@link PrinterStats snapshots} (e.g. for display), and, if
+ * {@link #startLog logging} is started, each request is also recorded as a line of a CSV file.
+ * Lines are buffered in memory, and appended to the file periodically, so that logging does not slow down printing.
+ * <p>A {@code PrintMetrics} may be shared between threads.
+ * @author dr6
+ */
+public class PrintMetrics implements Closeable {
+    /** The heading line of the CSV log */
+    public static final String CSV_HEADER = "time,printer,event,labels,bytes,connect_ms,write_ms,"
+            + "first_byte_ms,total_ms,response_code,error";
+
+    /**
+     * A histogram of non-negative values (such as durations in nanoseconds, or sizes in bytes).
+     * Values are counted in buckets whose bounds grow exponentially, four buckets for each power of two,
+     * so percentiles are accurate to within 25%, using a fixed amount of memory however many values are recorded.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        private Histogram() {}
+
+        private Histogram(Histogram other) {
+            System.arraycopy(other.counts, 0, this.counts, 0, counts.length);
+            this.count = other.count;
+            this.sum = other.sum;
+            this.max = other.max;
+        }
+
+        private void record(long value) {
+            if (value < 0) {
+                return;
+            }
+            counts[bucketIndex(value)]++;
+            ++count;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        private static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Gets the largest value that falls into the bucket with the given index.
+         */
+        private static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            long lower = ((long) (SUB_BUCKETS + sub)) << (exp - SUB_BUCKET_BITS);
+            return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+        }
+
+        /**
+         * Gets the number of values recorded.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Gets the mean of the values recorded, or 0 if none have been recorded.
+         */
+        public double getMean() {
+            return (count==0 ? 0 : (double) sum / count);
+        }
+
+        /**
+         * Gets the largest value recorded, or 0 if none have been recorded.
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        /**
+         * Gets (approximately) the value below which the given percentage of the recorded values fall.
+         * @param percentile the percentile, between 0 and 100
+         * @return the approximate value at the given percentile, or 0 if no values have been recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count==0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * The metrics recorded for one printer.
+     * Instances returned by {@link #getStats} are snapshots, and do not change.
+     */
+    public static final class PrinterStats {
+        private final String printer;
+        private long requests;
+        private long failures;
+        private long labels;
+        private long retries;
+        private final Map<Integer, Long> responseCodes;
+        private final Histogram bytes, connectTime, writeTime, firstByteTime, totalTime;
+
+        private PrinterStats(String printer) {
+            this.printer = printer;
+            this.responseCodes = new TreeMap<>();
+            this.bytes = new Histogram();
+            this.connectTime = new Histogram();
+            this.writeTime = new Histogram();
+            this.firstByteTime = new Histogram();
+            this.totalTime = new Histogram();
+        }
+
+        private PrinterStats(PrinterStats other) {
+            this.printer = other.printer;
+            this.requests = other.requests;
+            this.failures = other.failures;
+            this.labels = other.labels;
+            this.retries = other.retries;
+            this.responseCodes = new TreeMap<>(other.responseCodes);
+            this.bytes = new Histogram(other.bytes);
+            this.connectTime = new Histogram(other.connectTime);
+            this.writeTime = new Histogram(other.writeTime);
+            this.firstByteTime = new Histogram(other.firstByteTime);
+            this.totalTime = new Histogram(other.totalTime);
+        }
+
+        /** The name of the printer */
+        public String getPrinter() {
+            return this.printer;
+        }
+
+        /** The number of requests sent (or attempted) */
+        public long getRequests() {
+            return this.requests;
+        }
+
+        /** The number of requests that failed */
+        public long getFailures() {
+            return this.failures;
+        }
+
+        /** The number of labels in the requests that succeeded */
+        public long getLabels() {
+            return this.labels;
+        }
+
+        /** The number of times a failed request was scheduled to be retried */
+        public long getRetries() {
+            return this.retries;
+        }
+
+        /**
+         * The number of responses received with each response code.
+         * Failures without any response are counted under code 0.
+         */
+        public Map<Integer, Long> getResponseCodes() {
+            return Collections.unmodifiableMap(this.responseCodes);
+        }
+
+        /** The sizes of the request bodies, in bytes */
+        public Histogram getBytes() {
+            return this.bytes;
+        }
+
+        /** The time taken to connect, in nanoseconds */
+        public Histogram getConnectTime() {
+            return this.connectTime;
+        }
+
+        /** The time taken to write the request body, in nanoseconds */
+        public Histogram getWriteTime() {
+            return this.writeTime;
+        }
+
+        /** The time from the start of the request until the response started, in nanoseconds */
+        public Histogram getFirstByteTime() {
+            return this.firstByteTime;
+        }
+
+        /** The total time taken by each request, in nanoseconds */
+        public Histogram getTotalTime() {
+            return this.totalTime;
+        }
+    }
+
+    /**
+     * The timings of a single request as it is being sent.
+     * The client calls the methods of the sample as each stage of the request is reached;
+     * stages that are not reported are left out of the metrics for the request.
+     */
+    public final class Sample {
+        private final String printer;
+        private final int labels;
+        private final long start = System.nanoTime();
+        private long connected = -1, written = -1, firstByte = -1;
+        private long bytes = -1;
+
+        private Sample(String printer, int labels) {
+            this.printer = printer;
+            this.labels = labels;
+        }
+
+        /** Marks the point when the connection was established */
+        public void connected() {
+            connected = System.nanoTime();
+        }
+
+        /**
+         * Marks the point when the request body was written.
+         * @param bytes the size of the request body
+         */
+        public void written(long bytes) {
+            this.written = System.nanoTime();
+            this.bytes = bytes;
+        }
+
+        /** Marks the point when the response started to arrive */
+        public void firstByte() {
+            firstByte = System.nanoTime();
+        }
+
+        /**
+         * Records the request as having succeeded.
+         * @param responseCode the response code received
+         */
+        public void succeeded(int responseCode) {
+            record(this, System.nanoTime(), responseCode, null);
+        }
+
+        /**
+         * Records the request as having failed.
+         * @param error the reason for the failure
+         */
+        public void failed(Throwable error) {
+            if (error instanceof CompletionException && error.getCause()!=null) {
+                error = error.getCause();
+            }
+            int responseCode = 0;
+            if (error instanceof PMBResponseException) {
+                responseCode = ((PMBResponseException) error).getResponseCode();
+            }
+            record(this, System.nanoTime(), responseCode, error);
+        }
+    }
+
+    private final Map<String, PrinterStats> stats = new TreeMap<>();
+    private final List<String> pendingLines = new ArrayList<>();
+    private final Object fileLock = new Object();
+    private Path logFile;
+    private ScheduledExecutorService logExecutor;
+
+    /**
+     * Starts timing a request.
+     * @param request the request about to be sent
+     * @return a sample to be told about the progress of the request
+     */
+    public Sample start(PrintRequest request) {
+        return new Sample(request.getPrinter(), request.size());
+    }
+
+    /**
+     * Records that a failed request to the given printer is going to be retried.
+     * @param printer the name of the printer
+     */
+    public synchronized void recordRetry(String printer) {
+        statsFor(printer).retries++;
+        log(printer, "retry", -1, -1, -1, -1, -1, -1, 0, null);
+    }
+
+    private synchronized void record(Sample sample, long end, int responseCode, Throwable error) {
+        PrinterStats ps = statsFor(sample.printer);
+        ps.requests++;
+        if (error==null) {
+            ps.labels += sample.labels;
+        } else {
+            ps.failures++;
+        }
+        ps.responseCodes.merge(responseCode, 1L, Long::sum);
+        long connect = elapsed(sample.start, sample.connected);
+        long write = elapsed(sample.connected >= 0 ? sample.connected : sample.start, sample.written);
+        long firstByte = elapsed(sample.start, sample.firstByte);
+        long total = end - sample.start;
+        ps.bytes.record(sample.bytes);
+        ps.connectTime.record(connect);
+        ps.writeTime.record(write);
+        ps.firstByteTime.record(firstByte);
+        ps.totalTime.record(total);
+        log(sample.printer, error==null ? "sent" : "failed", sample.labels, sample.bytes,
+                connect, write, firstByte, total, responseCode, error);
+    }
+
+    /**
+     * Gets the time between two points, or -1 if the later point was not reached.
+     */
+    private static long elapsed(long from, long to) {
+        return (to < 0 ? -1 : to - from);
+    }
+
+    private PrinterStats statsFor(String printer) {
+        return stats.computeIfAbsent(String.valueOf(printer), PrinterStats::new);
+    }
+
+    /**
+     * Gets a snapshot of the metrics recorded for each printer, ordered by printer name.
+     * @return a list of metrics for each printer
+     */
+    public synchronized List<PrinterStats> getStats() {
+        List<PrinterStats> list = new ArrayList<>(stats.size());
+        for (PrinterStats ps : stats.values()) {
+            list.add(new PrinterStats(ps));
+        }
+        return list;
+    }
+
+    /**
+     * Starts recording each request as a line of the given CSV file.
+     * Lines are appended to the file at the given interval (and when this object is closed).
+     * If the file does not exist, it is created, starting with a {@link #CSV_HEADER header line}.
+     * @param file the path of the CSV file
+     * @param interval how often to append the recorded lines to the file
+     * @exception IOException the directory containing the file could not be created
+     */
+    public synchronized void startLog(Path file, Duration interval) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent!=null) {
+            Files.createDirectories(parent);
+        }
+        this.logFile = file;
+        if (logExecutor==null) {
+            logExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "print-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long millis = interval.toMillis();
+            logExecutor.scheduleWithFixedDelay(this::flushQuietly, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void log(String printer, String event, int labels, long bytes, long connect, long write,
+                     long firstByte, long total, int responseCode, Throwable error) {
+        if (logFile==null) {
+            return;
+        }
+        pendingLines.add(String.join(",", Instant.now().toString(), csvField(printer), event,
+                labels < 0 ? "" : String.valueOf(labels), bytes < 0 ? "" : String.valueOf(bytes),
+                millis(connect), millis(write), millis(firstByte), millis(total),
+                responseCode==0 ? "" : String.valueOf(responseCode),
+                error==null ? "" : csvField(String.valueOf(error.getMessage()))));
+    }
+
+    private static String millis(long nanos) {
+        return (nanos < 0 ? "" : String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+    }
+
+    /**
+     * Gets a string as a CSV field, quoted if necessary. Line breaks are replaced with spaces.
+     */
+    private static String csvField(String value) {
+        value = value.replace('\r', ' ').replace('\n', ' ');
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Appends any recorded lines to the log file.
+     * @exception IOException the file could not be written
+     */
+    public void flush() throws IOException {
+        Path file;
+        List<String> lines;
+        synchronized (this) {
+            if (logFile==null || pendingLines.isEmpty()) {
+                return;
+            }
+            file = logFile;
+            lines = new ArrayList<>(pendingLines);
+            pendingLines.clear();
+        }
+        synchronized (fileLock) {
+            boolean newFile = !Files.exists(file);
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                if (newFile) {
+                    out.write(CSV_HEADER);
+                    out.newLine();
+                }
+                for (String line : lines) {
+                    out.write(line);
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Could not write print metrics to "+logFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops periodic logging, appending any recorded lines to the log file.
+     * @exception IOException the file could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = this.logExecutor;
+            this.logExecutor = null;
+        }
+        if (executor!=null) {
+            executor.shutdown();
+        }
+        flush();
+    }
+}
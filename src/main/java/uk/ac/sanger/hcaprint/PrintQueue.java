@@ -0,0 +1,450 @@
+package uk.ac.sanger.hcaprint;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A durable queue of print requests that could not be sent, and are to be retried in the background.
+ * <p>The queue is recorded in an append-only journal file, so that it survives restarts of the application.
+ * Each line of the journal is either {@code +<tab>id<tab>warmUpLabels<tab>json} when a request is added to the
+ * queue, or {@code -<tab>id} when it is removed (because it has been sent, or has been rejected by PrintMyBarcode).
+ * (Journals written before the number of warm-up labels was recorded have {@code +<tab>id<tab>json} lines,
+ * which are read as having no warm-up labels.)
+ * When the queue is loaded, the journal is rewritten to contain only the requests still waiting.
+ * <p>Only one queue at a time may use a journal: while it is loaded, the queue holds a lock on a
+ * {@code .lock} file beside the journal, and another queue (in this or another process) cannot load it.
+ * <p>Requests for each printer are sent in the order they were queued. If sending to a printer fails in a way
+ * that might succeed later, the queue waits before trying that printer again, doubling the wait (up to a
+ * maximum) after each consecutive failure, with some random jitter so that many clients do not retry at the
+ * same moment. Meanwhile, requests for other printers are still sent. A request that has been tried the
+ * maximum number of times is given up.
+ * @author dr6
+ */
+public class PrintQueue {
+    /**
+     * A listener for changes to a print queue.
+     * The methods are called from the queue's background thread.
+     */
+    public interface Listener {
+        /**
+         * Called when requests are added to or removed from the queue.
+         * @param numRequests the number of requests now waiting in the queue
+         * @param numLabels the number of labels in the requests now waiting in the queue
+         */
+        void queueChanged(int numRequests, int numLabels);
+
+        /**
+         * Called when a queued request has been sent successfully, and removed from the queue.
+         * @param request the request that was sent
+         */
+        void requestSent(PrintRequest request);
+
+        /**
+         * Called when a queued request is given up, because PrintMyBarcode rejected it in a way that retrying
+         * will not fix, or because it has failed too many times.
+         * The request has been removed from the queue.
+         * @param request the rejected request
+         * @param exception the reason the request was rejected
+         */
+        void requestRejected(PrintRequest request, IOException exception);
+    }
+
+    private final Path journal;
+    private final PrintScheduler scheduler;
+    private final PrintConfig config;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final int maxAttempts;
+    private final ScheduledExecutorService executor;
+    private final Map<Long, PrintRequest> pending = new LinkedHashMap<>();
+    /** The number of failed attempts to send each pending request */
+    private final Map<Long, Integer> attempts = new HashMap<>();
+    /** The printers whose last attempt failed, and when they should next be tried */
+    private final Map<String, Backoff> backoffs = new HashMap<>();
+    private final Random random = new Random();
+    private Listener listener;
+    private long nextId = 1;
+    private boolean running;
+    private ScheduledFuture<?> wakeUp;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    /**
+     * Constructs a queue recorded in the given journal file.
+     * Call {@link #load} to read any requests left in the journal from a previous session.
+     * @param journal the path of the journal file
+     * @param scheduler the scheduler used to send requests
+     * @param config the config giving the names of the fields in the label data
+     * @param initialDelay the time to wait after the first failure before trying again
+     * @param maxDelay the maximum time to wait between attempts
+     * @param maxAttempts the number of times a request is tried before it is given up
+     */
+    public PrintQueue(Path journal, PrintScheduler scheduler, PrintConfig config, Duration initialDelay,
+                      Duration maxDelay, int maxAttempts) {
+        this.journal = journal;
+        this.scheduler = scheduler;
+        this.config = config;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "print-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the listener to be told about changes to this queue.
+     * @param listener the listener (may be null)
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Locks the journal, reads it, compacts it, and starts retrying any requests that were left in it.
+     * If the journal does not exist, the queue is empty.
+     * Lines of the journal that cannot be understood are skipped.
+     * @exception IOException the journal is in use by another queue, or could not be read or rewritten
+     */
+    public synchronized void load() throws IOException {
+        Path parent = journal.toAbsolutePath().getParent();
+        if (parent!=null) {
+            Files.createDirectories(parent);
+        }
+        lockJournal();
+        pending.clear();
+        attempts.clear();
+        if (Files.exists(journal)) {
+            try (BufferedReader in = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    readJournalLine(line);
+                }
+            }
+        }
+        Path temp = journal.resolveSibling(journal.getFileName()+".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Long, PrintRequest> entry : pending.entrySet()) {
+                out.write(addedLine(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        queueChanged();
+        start();
+    }
+
+    /**
+     * Takes the lock on the journal's lock file, unless this queue already holds it.
+     * The lock is held until the queue is {@link #close closed}, or the process ends.
+     * @exception IOException the lock is held by another queue, or the lock file could not be opened
+     */
+    private void lockJournal() throws IOException {
+        if (lock!=null) {
+            return;
+        }
+        Path lockFile = journal.resolveSibling(journal.getFileName()+".lock");
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock==null) {
+            channel.close();
+            throw new IOException("The print queue "+journal+" is in use by another instance of the application.");
+        }
+        this.lockChannel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Stops sending requests, and releases the lock on the journal.
+     * Requests still waiting stay in the journal, to be loaded again later.
+     */
+    public synchronized void close() {
+        executor.shutdownNow();
+        if (lockChannel!=null) {
+            try {
+                lockChannel.close(); // also releases the lock
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            lockChannel = null;
+            lock = null;
+        }
+    }
+
+    /**
+     * Interprets one line of the journal, updating the pending requests.
+     * @param line a line from the journal
+     */
+    private void readJournalLine(String line) {
+        if (line.isEmpty()) {
+            return;
+        }
+        String[] parts = line.split("\t", 4);
+        try {
+            long id = Long.parseLong(parts[1]);
+            if (parts[0].equals("+") && parts.length==4) {
+                PrintRequest request = PrintRequest.fromJson(parts[3], config);
+                request.setWarmUpLabels(Integer.parseInt(parts[2]));
+                pending.put(id, request);
+            } else if (parts[0].equals("+") && parts.length==3) {
+                // the JSON cannot contain a raw tab, so this is the older form without the warm-up labels
+                pending.put(id, PrintRequest.fromJson(parts[2], config));
+            } else if (parts[0].equals("-")) {
+                pending.remove(id);
+            } else {
+                throw new IllegalArgumentException("Unrecognised journal entry");
+            }
+            nextId = Math.max(nextId, id+1);
+        } catch (RuntimeException e) {
+            System.err.println("Skipping unreadable print queue entry: "+line);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds requests to the end of the queue, and starts sending them if the queue is not already running.
+     * The requests are recorded in the journal before this method returns.
+     * @param requests the requests to add
+     * @exception IOException the requests could not be recorded in the journal
+     */
+    public synchronized void enqueue(List<PrintRequest> requests) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        long id = nextId;
+        for (PrintRequest request : requests) {
+            sb.append(addedLine(id++, request));
+        }
+        appendToJournal(sb.toString());
+        for (PrintRequest request : requests) {
+            pending.put(nextId++, request);
+        }
+        queueChanged();
+        start();
+    }
+
+    /**
+     * Gets the number of requests waiting in the queue.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Starts sending requests in the background, unless that is already happening or there is nothing to send.
+     * If the queue is waiting to retry a printer, it looks at once for requests it can send to other printers.
+     */
+    private void start() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (wakeUp!=null) {
+            wakeUp.cancel(false);
+            wakeUp = null;
+            running = false;
+        }
+        if (!running) {
+            running = true;
+            executor.execute(this::sendPending);
+        }
+    }
+
+    /**
+     * Sends pending requests until the queue is empty, or until every printer with requests waiting is
+     * waiting to be retried, in which case the next attempt is scheduled.
+     * This runs on the queue's background thread.
+     */
+    private void sendPending() {
+        while (true) {
+            Map.Entry<Long, PrintRequest> next;
+            synchronized (this) {
+                wakeUp = null;
+                if (pending.isEmpty()) {
+                    running = false;
+                    return;
+                }
+                long now = System.nanoTime();
+                next = nextToSend(now);
+                if (next==null) {
+                    long delay = backoffs.values().stream().mapToLong(b -> b.retryAt - now).min().orElse(0);
+                    wakeUp = executor.schedule(this::sendPending, Math.max(0, delay), TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            final long id = next.getKey();
+            final PrintRequest request = next.getValue();
+            final String printer = request.getPrinter();
+            try {
+                scheduler.print(request);
+            } catch (IOException e) {
+                int numAttempts = failedAttempt(id, printer);
+                if (isRetryable(e) && numAttempts < maxAttempts) {
+                    scheduler.getClient().getMetrics().recordRetry(printer);
+                    System.err.println("Queued print for "+printer+" failed (attempt "+numAttempts
+                            +"), retrying in "+getRetryDelayMillis(printer)+" ms: "+e);
+                    continue;
+                }
+                IOException reason = e;
+                if (isRetryable(e)) {
+                    reason = new IOException("Gave up after "+numAttempts+" attempts: "+e, e);
+                }
+                reason.printStackTrace();
+                remove(id);
+                Listener listener = getListener();
+                if (listener!=null) {
+                    listener.requestRejected(request, reason);
+                }
+                continue;
+            }
+            synchronized (this) {
+                backoffs.remove(printer);
+            }
+            remove(id);
+            Listener listener = getListener();
+            if (listener!=null) {
+                listener.requestSent(request);
+            }
+        }
+    }
+
+    /**
+     * Finds the first pending request for a printer that is not waiting to be retried.
+     * @param now the current value of {@link System#nanoTime}
+     * @return the id and request to send next, or null if there is none
+     */
+    private Map.Entry<Long, PrintRequest> nextToSend(long now) {
+        for (Map.Entry<Long, PrintRequest> entry : pending.entrySet()) {
+            Backoff backoff = backoffs.get(entry.getValue().getPrinter());
+            if (backoff==null || backoff.retryAt - now <= 0) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a failed attempt to send a request, and backs off from its printer.
+     * @param id the id of the request
+     * @param printer the printer of the request
+     * @return the number of failed attempts to send the request, including this one
+     */
+    private synchronized int failedAttempt(long id, String printer) {
+        Backoff backoff = backoffs.computeIfAbsent(printer, p -> new Backoff());
+        ++backoff.failures;
+        backoff.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nextDelay(backoff.failures));
+        return attempts.merge(id, 1, Integer::sum);
+    }
+
+    private synchronized long getRetryDelayMillis(String printer) {
+        Backoff backoff = backoffs.get(printer);
+        return (backoff==null ? 0 : TimeUnit.NANOSECONDS.toMillis(backoff.retryAt - System.nanoTime()));
+    }
+
+    /**
+     * The consecutive failures of a printer, and when it should next be tried.
+     */
+    private static class Backoff {
+        int failures;
+        long retryAt;
+    }
+
+    /**
+     * Could the failure described by the given exception be fixed by trying again later?
+     * Failures to connect or communicate may be; responses rejecting the request itself are not.
+     * @param e the exception describing a failed attempt
+     * @return true if the request should be retried, otherwise false
+     */
+    public static boolean isRetryable(Throwable e) {
+        if (e instanceof IOException && e.getCause() instanceof RuntimeException
+                && !(e.getCause() instanceof UncheckedIOException)) {
+            return false; // an unexpected exception wrapped as an IOException: trying again will not help
+        }
+        if (e instanceof PMBResponseException) {
+            return ((PMBResponseException) e).isRetryable();
+        }
+        if (e instanceof InterruptedIOException) {
+            return (e instanceof SocketTimeoutException); // otherwise, the print was cancelled
+        }
+        return (e instanceof IOException);
+    }
+
+    /**
+     * Gets the time to wait before the next attempt, based on the number of consecutive failures.
+     * The wait is chosen at random between half and all of the exponential backoff delay.
+     * @param failures the number of consecutive failures
+     * @return the delay in milliseconds
+     */
+    private long nextDelay(int failures) {
+        long max = maxDelay.toMillis();
+        long delay = initialDelay.toMillis() << Math.min(failures-1, 30);
+        if (delay <= 0 || delay > max) {
+            delay = max;
+        }
+        return delay/2 + (long) (random.nextDouble() * (delay - delay/2));
+    }
+
+    /**
+     * Removes a request from the queue, recording the removal in the journal.
+     * If the journal cannot be written, the request is still removed from memory,
+     * but it will be sent again the next time the journal is loaded.
+     * @param id the id of the request to remove
+     */
+    private synchronized void remove(long id) {
+        try {
+            appendToJournal("-\t"+id+"\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        pending.remove(id);
+        attempts.remove(id);
+        queueChanged();
+    }
+
+    private synchronized Listener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * Tells the listener (if any) the current size of the queue.
+     */
+    private void queueChanged() {
+        if (listener!=null) {
+            listener.queueChanged(pending.size(), pending.values().stream().mapToInt(PrintRequest::size).sum());
+        }
+    }
+
+    /**
+     * Gets the journal line recording that a request was added.
+     * @param id the id of the request
+     * @param request the request
+     * @return a line for the journal, including the line terminator
+     */
+    private static String addedLine(long id, PrintRequest request) {
+        return "+\t"+id+"\t"+request.getWarmUpLabels()+"\t"+request+"\n";
+    }
+
+    /**
+     * Appends the given text to the journal, and waits for it to be written to the storage device.
+     * @param text the text to append
+     * @exception IOException the journal could not be written
+     */
+    private void appendToJournal(String text) throws IOException {
+        Files.write(journal, text.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+    }
+}
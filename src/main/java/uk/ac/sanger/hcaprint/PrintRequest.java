@@ -1,6 +1,8 @@
 package uk.ac.sanger.hcaprint;
 
 import javax.json.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.Function;
 
@@ -46,31 +48,175 @@ public class PrintRequest {
         }
     }
 
-    private final JsonBuilderFactory builderFactory = Json.createBuilderFactory(null);
+    /**
+     * The HTTP header giving the number of {@link #getWarmUpLabels warm-up labels} at the start of a request.
+     * PrintMyBarcode ignores it; a {@link PrintGateway} uses it to print warm-up labels only once.
+     */
+    static final String WARM_UP_LABELS_HEADER = "X-Warm-Up-Labels";
+
+    /**
+     * Holds the JSON factories. They are created the first time they are used, rather than with each request,
+     * because looking up the JSON provider is slow, and requests are normally serialized without them.
+     */
+    private static class JsonFactories {
+        static final JsonBuilderFactory BUILDER = Json.createBuilderFactory(null);
+        static final JsonReaderFactory READER = Json.createReaderFactory(null);
+    }
 
     private int templateId;
     private Map<Field, String> fieldNames;
+    private final LabelSerializer serializer;
     private final List<LabelData> values;
     private final String printer;
+    private int warmUpLabels;
+    private volatile byte[] body;
+
+    /**
+     * Constructs a print request for sending the specified values to the indicated printer,
+     * using the template and fields in the given config.
+     * @param values the values to send
+     * @param printer the name of the printer
+     * @param config the config giving the template id and the names of the fields to supply in the label data
+     */
+    public PrintRequest(List<LabelData> values, String printer, PrintConfig config) {
+        this(values, printer, config.getTemplateId(), config.getFieldNames());
+    }
 
     /**
      * Constructs a print request for sending the specified values to the indicated printer.
      * @param values the values to send
      * @param printer the name of the printer
      * @param templateId the template id to include in the print request
-     * @param fieldProps properties containing the names of the fields to supply in the label data
+     * @param fieldNames the names of the fields to supply in the label data (this map should not be changed later)
      */
-    public PrintRequest(List<LabelData> values, String printer, int templateId, Properties fieldProps) {
+    public PrintRequest(List<LabelData> values, String printer, int templateId, Map<Field, String> fieldNames) {
         this.values = values;
         this.printer = printer;
         this.templateId = templateId;
-        this.fieldNames = new EnumMap<>(Field.class);
-        for (Field field : Field.values()) {
-            String value = fieldProps.getProperty(field.propertyName(), "").trim();
-            if (!value.isEmpty()) {
-                this.fieldNames.put(field, value);
+        this.fieldNames = fieldNames;
+        this.serializer = LabelSerializer.forTemplate(templateId, fieldNames);
+    }
+
+    /**
+     * Constructs a print request for a subset of the labels of another request.
+     * The field names are shared with the other request.
+     * @param other the request whose printer, template and fields should be used
+     * @param values the values to send
+     */
+    private PrintRequest(PrintRequest other, List<LabelData> values) {
+        this.values = values;
+        this.printer = other.printer;
+        this.templateId = other.templateId;
+        this.fieldNames = other.fieldNames;
+        this.serializer = other.serializer;
+    }
+
+    /**
+     * Reconstructs a print request from its JSON representation, as produced by {@link #toString}.
+     * The names of the fields in the JSON are interpreted using the given config.
+     * @param json the JSON representation of a print request
+     * @param config the config giving the names of the fields in the label data
+     * @return a print request with the same printer, template and labels
+     * @exception JsonException the JSON could not be parsed, or did not describe a print request
+     */
+    public static PrintRequest fromJson(String json, PrintConfig config) {
+        JsonObject attributes;
+        try (JsonReader reader = JsonFactories.READER.createReader(new StringReader(json))) {
+            attributes = reader.readObject().getJsonObject("data").getJsonObject("attributes");
+        }
+        if (attributes==null) {
+            throw new JsonException("Missing attributes in print request.");
+        }
+        JsonArray body = attributes.getJsonObject("labels").getJsonArray("body");
+        List<LabelData> values = new ArrayList<>(body.size());
+        PrintRequest request = new PrintRequest(values, attributes.getString("printer_name"),
+                attributes.getInt("label_template_id"), config.getFieldNames());
+        String nameKey = request.fieldNames.get(Field.NAME);
+        String barcodeKey = request.fieldNames.get(Field.BARCODE);
+        String dateKey = request.fieldNames.get(Field.DATE);
+        for (JsonObject item : body.getValuesAs(JsonObject.class)) {
+            JsonObject label = item.getJsonObject("label");
+            String name = label.getString(nameKey!=null ? nameKey : "", null);
+            if (name==null && barcodeKey!=null) {
+                name = label.getString(barcodeKey, null);
             }
+            values.add(new LabelData(name, label.getString(dateKey!=null ? dateKey : "", null)));
         }
+        return request;
+    }
+
+    /**
+     * Gets the name of the printer this request is for.
+     */
+    public String getPrinter() {
+        return this.printer;
+    }
+
+    /**
+     * Gets the label template id for this request.
+     */
+    public int getTemplateId() {
+        return this.templateId;
+    }
+
+    /**
+     * Gets the labels in this request.
+     * @return an unmodifiable list of the labels
+     */
+    public List<LabelData> getLabels() {
+        return Collections.unmodifiableList(this.values);
+    }
+
+    /**
+     * Gets the number of labels in this request.
+     * @return the number of labels
+     */
+    public int size() {
+        return this.values.size();
+    }
+
+    /**
+     * Gets the number of labels at the start of this request that are only printed to warm up the printer.
+     */
+    public int getWarmUpLabels() {
+        return this.warmUpLabels;
+    }
+
+    /**
+     * Marks the labels at the start of this request that are only printed to warm up the printer.
+     * They are sent like any other label, but a {@link PrintGateway} only prints them once at the start of
+     * each combined request.
+     * @param warmUpLabels the number of warm-up labels at the start of this request
+     * @exception IllegalArgumentException the number is negative, or more than the number of labels
+     */
+    public void setWarmUpLabels(int warmUpLabels) {
+        if (warmUpLabels < 0 || warmUpLabels > size()) {
+            throw new IllegalArgumentException("Invalid number of warm-up labels: "+warmUpLabels);
+        }
+        this.warmUpLabels = warmUpLabels;
+    }
+
+    /**
+     * Splits this request into consecutive requests of at most {@code batchSize} labels each.
+     * Each batch has the same printer, template and fields as this request.
+     * Any warm-up labels are in the first batch.
+     * If {@code batchSize} is not positive, or this request is no bigger than {@code batchSize},
+     * the returned list contains just this request.
+     * @param batchSize the maximum number of labels in each batch
+     * @return a list of requests which together contain the labels of this request, in order
+     */
+    public List<PrintRequest> split(int batchSize) {
+        final int size = size();
+        if (batchSize <= 0 || size <= batchSize) {
+            return Collections.singletonList(this);
+        }
+        List<PrintRequest> batches = new ArrayList<>((size + batchSize - 1) / batchSize);
+        for (int start = 0; start < size; start += batchSize) {
+            PrintRequest batch = new PrintRequest(this, values.subList(start, Math.min(size, start + batchSize)));
+            batch.warmUpLabels = Math.max(0, Math.min(warmUpLabels - start, batch.size()));
+            batches.add(batch);
+        }
+        return batches;
     }
 
     /**
@@ -116,18 +262,69 @@ public class PrintRequest {
                 .build();
     }
 
+    /**
+     * Serializes this request in advance, so that it can be sent without serializing it again.
+     * This can be done in the background before the request is needed.
+     * The labels should not change after the request has been prepared.
+     */
+    public void prepare() {
+        if (body==null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            serializer.write(bytes, printer, values);
+            body = bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Has this request been {@link #prepare prepared}?
+     */
+    public boolean isPrepared() {
+        return (this.body!=null);
+    }
+
+    /**
+     * Gets the JSON for this request, encoded as UTF-8, if it has been {@link #prepare prepared}.
+     * The returned array is not a copy, and must not be changed.
+     * @return the prepared body, or null if the request has not been prepared
+     */
+    byte[] getPreparedBody() {
+        return this.body;
+    }
+
+    /**
+     * Writes the data for the print request as JSON to the given stream, encoded as UTF-8.
+     * If the request has been {@link #prepare prepared}, the prepared JSON is written.
+     * Otherwise the labels are written one at a time by the {@link LabelSerializer} for this request's
+     * template and fields, without building the whole request in memory first.
+     * The stream is closed when the request has been written.
+     * @param out the stream to write to
+     * @exception JsonException the stream could not be written
+     */
+    public void writeTo(OutputStream out) {
+        try (out) {
+            byte[] body = this.body;
+            if (body!=null) {
+                out.write(body);
+            } else {
+                serializer.write(out, printer, values);
+            }
+        } catch (IOException e) {
+            throw new JsonException("I/O error while writing JSON", e);
+        }
+    }
+
     /**
      * Gets a new JSON object builder from the builder factory.
      */
     private JsonObjectBuilder createObjectBuilder() {
-        return builderFactory.createObjectBuilder();
+        return JsonFactories.BUILDER.createObjectBuilder();
     }
 
     /**
      * Gets a new JSON array builder from the builder factory.
      */
     private JsonArrayBuilder createArrayBuilder() {
-        return builderFactory.createArrayBuilder();
+        return JsonFactories.BUILDER.createArrayBuilder();
     }
 
     /**
@@ -135,6 +332,12 @@ public class PrintRequest {
      */
     @Override
     public String toString() {
-        return getJsonValue().toString();
+        byte[] body = this.body;
+        if (body!=null) {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.write(bytes, printer, values);
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
     }
 }
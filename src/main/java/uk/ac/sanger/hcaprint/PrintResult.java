@@ -0,0 +1,49 @@
+package uk.ac.sanger.hcaprint;
+
+/**
+ * The result of a print request that was accepted by PrintMyBarcode.
+ * @author dr6
+ */
+public class PrintResult {
+    private final PrintRequest request;
+    private final int responseCode;
+    private final String responseBody;
+
+    /**
+     * Constructs a result for the given request.
+     * @param request the request that was sent
+     * @param responseCode the HTTP response code received
+     * @param responseBody the body of the response received (may be null)
+     */
+    public PrintResult(PrintRequest request, int responseCode, String responseBody) {
+        this.request = request;
+        this.responseCode = responseCode;
+        this.responseBody = responseBody;
+    }
+
+    /**
+     * Gets the request that was sent
+     */
+    public PrintRequest getRequest() {
+        return this.request;
+    }
+
+    /**
+     * Gets the HTTP response code received from PrintMyBarcode
+     */
+    public int getResponseCode() {
+        return this.responseCode;
+    }
+
+    /**
+     * Gets the body of the response received from PrintMyBarcode
+     */
+    public String getResponseBody() {
+        return this.responseBody;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrintResult(%s labels to %s: %s)", request.size(), request.getPrinter(), responseCode);
+    }
+}
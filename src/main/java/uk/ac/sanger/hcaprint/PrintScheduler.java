@@ -0,0 +1,278 @@
+package uk.ac.sanger.hcaprint;
+
+import uk.ac.sanger.hcaprint.PMBClient.BatchListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Schedules print requests for each printer, in front of a {@link PMBClient}.
+ * <p>Each print job (a sequence of batches for one printer) is added to a queue for its printer.
+ * Only one request is sent to each printer at a time, and the jobs waiting for a printer take turns,
+ * one batch each, so a small job is not held up behind every batch of a large job that was started first.
+ * <p>If the config gives a {@link PrintConfig#getRateLimit rate limit} for a printer, the labels sent to it
+ * are limited by a token bucket: the bucket fills at the given number of labels per second, up to the
+ * configured {@link PrintConfig#getRateBurst burst}, and a batch waits until the bucket has enough labels for it
+ * (or is full, if the batch is bigger than the bucket).
+ * <p>The methods for sending requests match those of {@link PMBClient}, and the scheduler may be shared
+ * between threads.
+ * @author dr6
+ */
+public class PrintScheduler {
+    private final PMBClient pmb;
+    private final PrintConfig config;
+    private final Map<String, PrinterQueue> queues = new HashMap<>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Constructs a scheduler sending requests through the given client, with the rate limits in the given config.
+     * @param pmb the client to send requests
+     * @param config the config giving the rate limits for the printers
+     */
+    public PrintScheduler(PMBClient pmb, PrintConfig config) {
+        this.pmb = pmb;
+        this.config = config;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "print-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets the client this scheduler sends requests through.
+     */
+    public PMBClient getClient() {
+        return this.pmb;
+    }
+
+    /**
+     * Sends a print request, waiting until it has been sent.
+     * @param request the print request to send
+     * @exception IOException there was a problem sending the print request
+     */
+    public void print(PrintRequest request) throws IOException {
+        try {
+            printAsync(request).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Schedules a print request as a job of its own.
+     * The returned future completes as for {@link PMBClient#printAsync(PrintRequest)}.
+     * @param request the print request to send
+     * @return a future result of the request
+     */
+    public CompletableFuture<PrintResult> printAsync(PrintRequest request) {
+        Job job = new Job(Collections.singletonList(request), null, false);
+        add(job);
+        return job.result;
+    }
+
+    /**
+     * Schedules a sequence of print requests for one printer as a job.
+     * The returned future completes as for {@link PMBClient#printAsync(List, BatchListener)}.
+     * @param batches the print requests to send, in order
+     * @param listener a listener to be told after each batch is sent (may be null)
+     * @return a future that completes when all the batches have been sent
+     */
+    public CompletableFuture<Void> printAsync(List<PrintRequest> batches, BatchListener listener) {
+        if (batches.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Job job = new Job(batches, listener, true);
+        add(job);
+        return job.result.thenAccept(result -> {});
+    }
+
+    /**
+     * Adds a job to the queue for its printer, and sends it if the printer is free.
+     */
+    private void add(Job job) {
+        PrinterQueue queue;
+        synchronized (this) {
+            String printer = job.batches.get(0).getPrinter();
+            queue = queues.computeIfAbsent(printer, PrinterQueue::new);
+            queue.jobs.addLast(job);
+        }
+        dispatch(queue);
+    }
+
+    /**
+     * Sends the next batch for the given printer, if the printer is free and the rate limit allows it.
+     * If the rate limit does not allow it yet, another attempt is scheduled for when it will.
+     */
+    private void dispatch(PrinterQueue queue) {
+        Job job;
+        PrintRequest batch;
+        synchronized (this) {
+            if (queue.busy || queue.waiting || queue.jobs.isEmpty()) {
+                return;
+            }
+            job = queue.jobs.peekFirst();
+            batch = job.batches.get(job.index);
+            if (queue.bucket!=null) {
+                long now = System.nanoTime();
+                long delay = queue.bucket.delayNanos(batch.size(), now);
+                if (delay > 0) {
+                    queue.waiting = true;
+                    timer.schedule(() -> {
+                        synchronized (this) {
+                            queue.waiting = false;
+                        }
+                        dispatch(queue);
+                    }, delay, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                queue.bucket.take(batch.size(), now);
+            }
+            queue.busy = true;
+        }
+        // Completed asynchronously, so that requests that fail at once do not recurse through the whole queue
+        pmb.printAsync(batch).whenCompleteAsync((result, error) -> batchDone(queue, job, batch, result, error));
+    }
+
+    /**
+     * Called when a batch has been sent (or has failed). Moves the job to the back of its printer's queue
+     * if it has more batches to send, or completes it; then sends the next batch for the printer.
+     */
+    private void batchDone(PrinterQueue queue, Job job, PrintRequest batch, PrintResult result, Throwable error) {
+        Throwable failure = null;
+        if (error!=null) {
+            if (error instanceof CompletionException && error.getCause()!=null) {
+                error = error.getCause();
+            }
+            failure = (job.batched ? new BatchPrintException(job.index, job.labelsSent, toIOException(error)) : error);
+        } else {
+            job.labelsSent += batch.size();
+            ++job.index;
+            if (job.listener!=null && !job.listener.batchSent(job.index-1, job.labelsSent) && job.hasNext()) {
+                failure = new BatchPrintException(job.index, job.labelsSent,
+                        new InterruptedIOException("Printing was cancelled."));
+            }
+        }
+        boolean finished = (failure!=null || !job.hasNext());
+        synchronized (this) {
+            queue.busy = false;
+            queue.jobs.remove(job);
+            if (!finished) {
+                queue.jobs.addLast(job);
+            }
+        }
+        if (failure!=null) {
+            job.result.completeExceptionally(failure);
+        } else if (finished) {
+            job.result.complete(result);
+        }
+        dispatch(queue);
+    }
+
+    private static IOException toIOException(Throwable error) {
+        return (error instanceof IOException ? (IOException) error : new IOException(error));
+    }
+
+    /**
+     * The jobs waiting for one printer.
+     */
+    private class PrinterQueue {
+        final Deque<Job> jobs = new ArrayDeque<>();
+        final TokenBucket bucket;
+        /** Whether a request is being sent to the printer */
+        boolean busy;
+        /** Whether the next batch is waiting for the rate limit */
+        boolean waiting;
+
+        PrinterQueue(String printer) {
+            double rate = config.getRateLimit(printer);
+            if (rate > 0) {
+                int burst = config.getRateBurst();
+                this.bucket = new TokenBucket(rate, burst > 0 ? burst : Math.max(config.getBatchSize(), Math.ceil(rate)));
+            } else {
+                this.bucket = null;
+            }
+        }
+    }
+
+    /**
+     * A sequence of batches for one printer, sent in order.
+     */
+    private static class Job {
+        final List<PrintRequest> batches;
+        final BatchListener listener;
+        /** Whether failures should be reported as {@link BatchPrintException}s */
+        final boolean batched;
+        final CompletableFuture<PrintResult> result = new CompletableFuture<>();
+        int index;
+        int labelsSent;
+
+        Job(List<PrintRequest> batches, BatchListener listener, boolean batched) {
+            this.batches = batches;
+            this.listener = listener;
+            this.batched = batched;
+        }
+
+        boolean hasNext() {
+            return (index < batches.size());
+        }
+    }
+
+    /**
+     * A token bucket counting the labels that may be sent to a printer.
+     * The bucket fills at a fixed rate, up to its capacity. Sending a batch takes as many tokens as it has labels,
+     * which may leave the bucket in debt, if the batch is bigger than the bucket.
+     */
+    static class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        /**
+         * Constructs a full bucket.
+         * @param ratePerSecond the number of tokens added each second
+         * @param capacity the most tokens the bucket can hold
+         */
+        TokenBucket(double ratePerSecond, double capacity) {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+        }
+
+        /**
+         * Gets how long to wait before the given number of tokens can be taken.
+         * If more tokens are asked for than the bucket can hold, they can be taken when the bucket is full.
+         * @param count the number of tokens required
+         * @param now the current {@link System#nanoTime}
+         * @return the time to wait in nanoseconds, or zero if the tokens can be taken now
+         */
+        long delayNanos(int count, long now) {
+            refill(now);
+            double needed = Math.min(count, capacity);
+            return (tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) / ratePerNano));
+        }
+
+        /**
+         * Takes the given number of tokens.
+         * @param count the number of tokens to take
+         * @param now the current {@link System#nanoTime}
+         */
+        void take(int count, long now) {
+            refill(now);
+            tokens -= count;
+        }
+    }
+}
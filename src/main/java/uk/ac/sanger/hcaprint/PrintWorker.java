@@ -0,0 +1,122 @@
+package uk.ac.sanger.hcaprint;
+
+import javax.swing.SwingWorker;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A worker that sends batches of print requests in the background, so that the user interface
+ * is not blocked while PrintMyBarcode responds.
+ * The worker may send to several printers: the batches for each printer are sent in order,
+ * and the different printers are sent to concurrently, through a {@link PrintScheduler}.
+ * Progress (in the range 0&ndash;100) is reported through the worker's {@code progress} property,
+ * after each batch is sent.
+ * The result of the worker is a map from printer name to the {@link BatchPrintException} describing
+ * why printing to that printer failed or was cancelled. If every printer succeeded, the map is empty.
+ * @author dr6
+ */
+public class PrintWorker extends SwingWorker<Map<String, BatchPrintException>, Void> {
+    private final PrintScheduler scheduler;
+    private final Map<String, List<PrintRequest>> printerBatches;
+    private final int numLabels;
+    private int labelsSent;
+    private volatile boolean stopRequested;
+
+    /**
+     * Constructs a worker to send the given batches using the given scheduler.
+     * @param scheduler the scheduler to send the batches
+     * @param printerBatches a map from printer name to the print requests to send to that printer, in order
+     */
+    public PrintWorker(PrintScheduler scheduler, Map<String, List<PrintRequest>> printerBatches) {
+        this.scheduler = scheduler;
+        this.printerBatches = printerBatches;
+        this.numLabels = printerBatches.values().stream()
+                .flatMap(List::stream)
+                .mapToInt(PrintRequest::size)
+                .sum();
+    }
+
+    /**
+     * Gets the names of the printers this worker is sending to.
+     */
+    public Set<String> getPrinters() {
+        return this.printerBatches.keySet();
+    }
+
+    /**
+     * Gets the number of batches this worker is sending to the given printer.
+     */
+    public int getNumBatches(String printer) {
+        return this.printerBatches.getOrDefault(printer, Collections.emptyList()).size();
+    }
+
+    /**
+     * Gets the batches this worker is sending to the given printer.
+     * @param printer the name of the printer
+     * @return the batches for the printer, in order
+     */
+    public List<PrintRequest> getBatches(String printer) {
+        return Collections.unmodifiableList(this.printerBatches.getOrDefault(printer, Collections.emptyList()));
+    }
+
+    /**
+     * Gets the batches for the given printer that were not sent, because of the given failure.
+     * @param printer the name of the printer
+     * @param failure the exception describing why printing to that printer stopped
+     * @return the batches from the failed one onwards
+     */
+    public List<PrintRequest> getUnsentBatches(String printer, BatchPrintException failure) {
+        List<PrintRequest> batches = this.printerBatches.getOrDefault(printer, Collections.emptyList());
+        return batches.subList(Math.min(failure.getBatchIndex(), batches.size()), batches.size());
+    }
+
+    /**
+     * Gets the number of labels this worker is sending to the given printer.
+     */
+    public int getNumLabels(String printer) {
+        return this.printerBatches.getOrDefault(printer, Collections.emptyList()).stream()
+                .mapToInt(PrintRequest::size)
+                .sum();
+    }
+
+    /**
+     * Asks the worker to stop once the batches currently being sent have finished.
+     * Unlike {@link #cancel}, the worker still completes normally, and reports how much was sent.
+     */
+    public void requestStop() {
+        this.stopRequested = true;
+    }
+
+    /**
+     * Called (from whichever thread completed the batch) when a batch has been sent.
+     * Updates the progress of the worker.
+     * @param batch the batch that was sent
+     * @return true if the worker should carry on; false if it should stop
+     */
+    private synchronized boolean batchSent(PrintRequest batch) {
+        labelsSent += batch.size();
+        setProgress(numLabels > 0 ? (int) (100L * labelsSent / numLabels) : 100);
+        return !stopRequested;
+    }
+
+    @Override
+    protected Map<String, BatchPrintException> doInBackground() {
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>(printerBatches.size());
+        printerBatches.forEach((printer, batches) ->
+                futures.put(printer, scheduler.printAsync(batches, (batchIndex, sent) -> batchSent(batches.get(batchIndex))))
+        );
+        Map<String, BatchPrintException> failures = new LinkedHashMap<>();
+        futures.forEach((printer, future) -> {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof BatchPrintException)) {
+                    throw e;
+                }
+                failures.put(printer, (BatchPrintException) e.getCause());
+            }
+        });
+        return failures;
+    }
+}